@@ -17,6 +17,16 @@ public class MNBC {
 			MNBC_build.execute(args);
 		} else if(args[0].equals("classify")) {
 			MNBC_classify.execute(args);
+		} else if(args[0].equals("convert")) {
+			MNBC_convert.execute(args);
+		} else if(args[0].equals("pack")) {
+			MNBC_pack.execute(args);
+		} else if(args[0].equals("update")) {
+			MNBC_update.execute(args);
+		} else if(args[0].equals("aggregate")) {
+			MNBC_aggregate.execute(args);
+		} else if(args[0].equals("frequency")) {
+			MNBC_frequency.execute(args);
 		} else {
 			help();
 		}
@@ -27,5 +37,10 @@ public class MNBC {
 		System.out.println("Step 1: generate taxonomy file -- Run 'MNBC taxonomy -h' for help");
 		System.out.println("Step 2: build reference database -- Run 'MNBC build -h' for help");
 		System.out.println("Step 3: classify reads -- Run 'MNBC classify -h' for help");
+		System.out.println("Utility: convert a text database into the binary format -- Run 'MNBC convert -h' for help");
+		System.out.println("Utility: pack a database into a single memory-mapped file -- Run 'MNBC pack -h' for help");
+		System.out.println("Utility: add genomes to or remove genomes from a database without rebuilding it -- Run 'MNBC update -h' for help");
+		System.out.println("Utility: aggregate the genomes of a database into species (or other rank) units for faster classification -- Run 'MNBC aggregate -h' for help");
+		System.out.println("Utility: list the minimizers nearly all genomes of a database contain, for classify to skip testing them (-x) -- Run 'MNBC frequency -h' for help");
 	}
 }
@@ -0,0 +1,286 @@
+/**
+ *
+ * @author Ruipeng Lu (ruipeng.lu@inspection.gc.ca)
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class MNBC_aggregate { //Aggregates the genomes of a database into one unit per taxon, holding the union of their minimizers, which classify uses like genomes
+	public static final String[] RANKS = {"species", "genus", "family", "order", "class", "phylum", "kingdom", "domain"}; //Columns 2-9 of the taxonomy file
+	private static final String UNRESOLVED_TAXON = "-"; //Taxonomy of a unit below its rank
+
+	private static int k = 15;
+	private static int w; //k if not set
+	private static int ordering = MNBC_minimizer.ALPHABETICAL;
+	private static int rank = 0; //Index in RANKS
+	private static int numberOfThreads;
+	private static String dbDirPath;
+	private static String metaFilePath;
+	private static String outputDirPath;
+
+	public static void execute(String[] args) {
+		if(args.length == 1) {
+			printHelpInfo();
+			System.exit(0);
+		}
+
+		for(int i = 1; i < args.length; i++) {
+			if(args[i].startsWith("-")) {
+				switch(args[i].charAt(1)) {
+					case 'k':
+						k = Integer.parseInt(args[i + 1]);
+						break;
+					case 'a':
+						ordering = MNBC_minimizer.parseOrdering(args[i + 1]);
+						break;
+					case 'w':
+						w = Integer.parseInt(args[i + 1]);
+						break;
+					case 'r':
+						rank = Arrays.asList(RANKS).indexOf(args[i + 1]);
+						break;
+					case 'c':
+						numberOfThreads = Integer.parseInt(args[i + 1]);
+						break;
+					case 'd':
+						dbDirPath = args[i + 1];
+						break;
+					case 'm':
+						metaFilePath = args[i + 1];
+						break;
+					case 'o':
+						outputDirPath = args[i + 1];
+						break;
+					case 'h':
+						printHelpInfo();
+						System.exit(0);
+				}
+			}
+		}
+
+		if(w == 0) {
+			w = k;
+		}
+		if((k <= 0) || (k > MNBC_minimizer.MAX_K) || (w <= 0) || (ordering < 0) || (rank < 0) || (numberOfThreads == 0) || (dbDirPath == null) || (metaFilePath == null) || (outputDirPath == null)) {
+			System.out.println("Error: not all required parameters are correctly set -- Run 'MNBC aggregate -h' for help");
+			System.exit(0);
+		}
+
+		long startTime = System.nanoTime();
+		LinkedHashMap<String, String[]> genomeId2Row = new LinkedHashMap<String, String[]>();
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(metaFilePath));
+			String line = reader.readLine();
+			while((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				genomeId2Row.put(fields[0], fields);
+			}
+			reader.close();
+		} catch(Exception e) {
+			System.out.println("ERROR: failed reading taxonomy file " + metaFilePath);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		//Units in the order of their first genome in the taxonomy file, each with its genomes in file name order
+		File[] countFiles = new File(dbDirPath).listFiles((dir, name) -> MNBC_db.isCountFile(name));
+		Arrays.sort(countFiles);
+		LinkedHashMap<String, ArrayList<File>> unit2CountFiles = new LinkedHashMap<String, ArrayList<File>>();
+		LinkedHashMap<String, String[]> unit2Row = new LinkedHashMap<String, String[]>();
+		for(String[] row : genomeId2Row.values()) {
+			String unitId = RANKS[rank] + "_" + row[rank + 1];
+			if(!unit2Row.containsKey(unitId)) {
+				String[] unitRow = new String[10];
+				unitRow[0] = unitId;
+				for(int i = 0; i < RANKS.length; i++) {
+					unitRow[i + 1] = (i < rank) ? UNRESOLVED_TAXON : row[i + 1];
+				}
+				unit2Row.put(unitId, unitRow);
+				unit2CountFiles.put(unitId, new ArrayList<File>());
+			}
+		}
+		for(File countFile : countFiles) {
+			String[] row = genomeId2Row.get(MNBC_db.getGenomeId(countFile.getName()));
+			if(row == null) {
+				System.out.println("ERROR: genome " + MNBC_db.getGenomeId(countFile.getName()) + " of the database is missing from taxonomy file " + metaFilePath + ", exiting");
+				System.exit(1);
+			}
+			unit2CountFiles.get(RANKS[rank] + "_" + row[rank + 1]).add(countFile);
+		}
+		unit2CountFiles.values().removeIf(ArrayList::isEmpty);
+		System.out.println("Aggregating " + countFiles.length + " genomes into " + unit2CountFiles.size() + " " + RANKS[rank] + " units");
+
+		ExecutorService nested = Executors.newFixedThreadPool(numberOfThreads);
+		CompletionService<String> pool = new ExecutorCompletionService<String>(nested);
+		for(String unitId : unit2CountFiles.keySet()) {
+			pool.submit(new UnitAggregator(unitId, unit2CountFiles.get(unitId)));
+		}
+
+		int failedCounter = 0;
+		for(int i = 0; i < unit2CountFiles.size(); i++) {
+			try {
+				String outcome = pool.take().get();
+				System.out.println(outcome);
+				if(outcome.contains("ERROR")) {
+					failedCounter++;
+				}
+			} catch(Exception e) {
+				System.out.println("Exception on " + i + " th returned task");
+				e.printStackTrace();
+				failedCounter++;
+			}
+		}
+		nested.shutdown();
+
+		File taxonomyFile = new File(outputDirPath, "taxonomy.txt");
+		try {
+			PrintWriter writer = new PrintWriter(taxonomyFile);
+			writer.print("Accession\tSpecies\tGenus\tFamily\tOrder\tClass\tPhylum\tKingdom\tDomain\tOrganism\n");
+			for(String unitId : unit2CountFiles.keySet()) {
+				String[] unitRow = unit2Row.get(unitId);
+				unitRow[9] = RANKS[rank] + " " + unitRow[rank + 1] + " (" + unit2CountFiles.get(unitId).size() + " genomes)";
+				writer.print(String.join("\t", unitRow) + "\n");
+			}
+			writer.close();
+		} catch(IOException e) {
+			System.out.println("ERROR: failed writing taxonomy file " + taxonomyFile);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		long endTime = System.nanoTime();
+		System.out.println("Aggregated " + (unit2CountFiles.size() - failedCounter) + " units (" + failedCounter + " failed) in " + ((endTime - startTime) / 1000000000) + " seconds, taxonomy file of the units: " + taxonomyFile);
+		if(failedCounter > 0) {
+			System.exit(1);
+		}
+	}
+
+	//Merges the ascending minimizers of the unit's genomes one genome at a time, so only the union and one genome are in memory.
+	//The valid k-mer total count of the unit, giving its minimizer frequency in classify, estimates the distinct k-mers of the union:
+	//its minimizer count times the number of k-mers per minimizer of its genomes (about (w+1)/2), rather than the sum over the genomes,
+	//which would count the k-mers shared by the strains several times
+	private static class UnitAggregator implements Callable<String> {
+		private String unitId;
+		private ArrayList<File> countFiles;
+
+		public UnitAggregator(String aUnitId, ArrayList<File> someCountFiles) {
+			unitId = aUnitId;
+			countFiles = someCountFiles;
+		}
+
+		@Override
+		public String call() {
+			int[] union = new int[0];
+			long[] longUnion = new long[0];
+			long genomeKmerCount = 0;
+			long genomeMinimizerCount = 0;
+			try {
+				for(File countFile : countFiles) {
+					MNBC_db.CountFile content = MNBC_db.readCountFile(countFile, k);
+					if(content.k != 0 && content.k != k) {
+						return "ERROR: " + countFile.getName() + " was built with k=" + content.k + " but aggregating uses k=" + k;
+					}
+					if(content.w != 0 && content.w != w) {
+						return "ERROR: " + countFile.getName() + " was built with w=" + content.w + " but aggregating uses w=" + w;
+					}
+					if(content.ordering >= 0 && content.ordering != ordering) {
+						return "ERROR: " + countFile.getName() + " was built with " + MNBC_minimizer.ORDERING_NAMES[content.ordering] + " k-mer ordering but aggregating uses " + MNBC_minimizer.ORDERING_NAMES[ordering];
+					}
+					if(countFile.getName().endsWith(MNBC_db.TEXT_SUFFIX)) {
+						content.sort();
+					}
+					if(content.longMinimizers != null) {
+						longUnion = merge(longUnion, content.longMinimizers);
+					} else {
+						union = merge(union, content.minimizers);
+					}
+					genomeKmerCount += content.kmerTotalCount;
+					genomeMinimizerCount += content.size();
+				}
+
+				int unionSize = MNBC_minimizer.isLong(k) ? longUnion.length : union.length;
+				long kmerTotalCount = (genomeMinimizerCount == 0) ? 0 : Math.round((double) unionSize * genomeKmerCount / genomeMinimizerCount);
+				File outputFile = new File(outputDirPath, unitId + MNBC_db.BINARY_SUFFIX);
+				if(MNBC_minimizer.isLong(k)) {
+					MNBC_db.writeBinaryCountFile(outputFile, k, w, ordering, kmerTotalCount, longUnion);
+				} else {
+					MNBC_db.writeBinaryCountFile(outputFile, k, w, ordering, kmerTotalCount, union);
+				}
+				return "Aggregated " + countFiles.size() + " genomes (" + genomeMinimizerCount + " minimizers) into " + unitId + " (" + unionSize + " minimizers)";
+			} catch(Exception e) {
+				e.printStackTrace();
+				return "ERROR: couldn't aggregate " + unitId;
+			}
+		}
+	}
+
+	private static int[] merge(int[] a, int[] b) { //Union of two ascending arrays
+		int[] union = new int[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while(i < a.length && j < b.length) {
+			if(a[i] < b[j]) {
+				union[n++] = a[i++];
+			} else if(a[i] > b[j]) {
+				union[n++] = b[j++];
+			} else {
+				union[n++] = a[i++];
+				j++;
+			}
+		}
+		while(i < a.length) {
+			union[n++] = a[i++];
+		}
+		while(j < b.length) {
+			union[n++] = b[j++];
+		}
+		return Arrays.copyOf(union, n);
+	}
+
+	private static long[] merge(long[] a, long[] b) {
+		long[] union = new long[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while(i < a.length && j < b.length) {
+			if(a[i] < b[j]) {
+				union[n++] = a[i++];
+			} else if(a[i] > b[j]) {
+				union[n++] = b[j++];
+			} else {
+				union[n++] = a[i++];
+				j++;
+			}
+		}
+		while(i < a.length) {
+			union[n++] = a[i++];
+		}
+		while(j < b.length) {
+			union[n++] = b[j++];
+		}
+		return Arrays.copyOf(union, n);
+	}
+
+	private static void printHelpInfo() {
+		System.out.println("This MNBC_aggregate tool (v1.2) aggregates the genomes of a database into one unit per taxon of a rank (e.g. species), holding the union of their minimizers. Classifying against the aggregated database is much faster and takes less memory when the database holds many strains per species, but reads are assigned to units instead of genomes.");
+		System.out.println("-h:	Show this help menu");
+		System.out.println("-c:	Number of threads");
+		System.out.println("-d:	Input database directory (containing text _count.gz or binary _count.bin files)");
+		System.out.println("-m:	Taxonomy file of the input database");
+		System.out.println("-o:	Existing output directory for the aggregated database (binary _count.bin files named after the units, e.g. species_562_count.bin) and its taxonomy file taxonomy.txt, to give classify with '-d' and '-m'");
+		System.out.println("-r (optional):	Rank of the units (species, genus, family, order, class, phylum, kingdom or domain). Units above species have '-' as the taxa below their rank, so classify reports the best unit instead of a species vote (default species)");
+		System.out.println("-k (optional):	K-mer length the database was built with (an integer between 1 and 31 inclusive) (default 15)");
+		System.out.println("-w (optional):	Window size the database was built with (default k)");
+		System.out.println("-a (optional):	K-mer ordering the database was built with (alphabetical or hash) (default alphabetical)");
+	}
+}
@@ -4,39 +4,49 @@
  * 
  */
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPOutputStream;
 
 import org.eclipse.collections.api.set.primitive.MutableIntSet;
+import org.eclipse.collections.api.set.primitive.MutableLongSet;
 import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
 
-public class MNBC_build { //Based on NaiveBayesClassifierCount_V3, only use canonical kmers; And only use slurm-jobid.out as the progress file
-						//Only use minimizer seeds (w=k, window size=w+k-1), base/kmer ordering can change (here use default alphabetical ACGT order)
+public class MNBC_build { //Based on NaiveBayesClassifierCount_V3, only use canonical kmers; Progress is journaled in the manifest of the output directory (see MNBC_manifest)
+						//Only use minimizer seeds (w=k by default, window size=w+k-1), base/kmer ordering can change (default alphabetical ACGT order, or hash), see MNBC_minimizer
 	private static int k = 15;
+	private static int w; //Window size in k-mers, k if not set
+	private static int ordering = MNBC_minimizer.ALPHABETICAL; //K-mer ordering choosing the minimizers
 	private static int numberOfThreads;
 	private static int lengthThreshold = 0;
+	private static long memoryBudget = Runtime.getRuntime().maxMemory() / 10 * 8; //Bytes the concurrently processed genomes may take
 	private static String referenceGenomeDirPath;	
 	private static String outputDirPath;
-	private static String previousProgressPath;	
+	private static boolean binaryFormat; //Write compact binary count files instead of gzipped text
+	private static final int CHUNK_LENGTH = 1 << 22; //Bases of a long chromosome extracted by one fork/join task
+	private static ForkJoinPool chunkPool; //Extracts the chunks of long chromosomes for all genomes
+	private static MNBC_manifest manifest; //Genomes completed in the output directory, by this build or an interrupted one
 	
 	public static void execute(String[] args) {
 		if(args.length == 1) {
@@ -50,6 +60,12 @@ public class MNBC_build { //Based on NaiveBayesClassifierCount_V3, only use cano
 					case 'k':
 						k = Integer.parseInt(args[i + 1]);
 						break;
+					case 'a':
+						ordering = MNBC_minimizer.parseOrdering(args[i + 1]);
+						break;
+					case 'w':
+						w = Integer.parseInt(args[i + 1]);
+						break;
 					case 'c':
 						numberOfThreads = Integer.parseInt(args[i + 1]);
 						break;
@@ -62,8 +78,14 @@ public class MNBC_build { //Based on NaiveBayesClassifierCount_V3, only use cano
 					case 'o':
 						outputDirPath = args[i + 1];
 						break;
+					case 'm':
+						memoryBudget = Long.parseLong(args[i + 1]) << 20;
+						break;
 					case 'b':
-						previousProgressPath = args[i + 1];
+						System.out.println("WARNING - '-b' is no longer needed, a build resumes from the manifest of its output directory");
+						break;
+					case 't':
+						binaryFormat = args[i + 1].equals("binary");
 						break;
 					case 'h':
 						printHelpInfo();
@@ -72,7 +94,10 @@ public class MNBC_build { //Based on NaiveBayesClassifierCount_V3, only use cano
 			}
 		}
 		
-		if((k <= 0) || (numberOfThreads == 0) || (referenceGenomeDirPath == null) || (outputDirPath == null)) {
+		if(w == 0) {
+			w = k;
+		}
+		if((k <= 0) || (k > MNBC_minimizer.MAX_K) || (w <= 0) || (ordering < 0) || (memoryBudget <= 0) || (numberOfThreads == 0) || (referenceGenomeDirPath == null) || (outputDirPath == null)) {
 			System.out.println("Error: not all required parameters are correctly set -- Run 'MNBC build -h' for help");
 			System.exit(0);
 		}
@@ -85,39 +110,60 @@ public class MNBC_build { //Based on NaiveBayesClassifierCount_V3, only use cano
 			System.exit(1);
 		}
 		
-		HashSet<String> previouslyCompletedGenomes = null;
-		if(previousProgressPath != null) {
-			System.out.println("***************************************************************");
-			System.out.println("In the previous killed run, the following reference genomes have been completed:");			
-			previouslyCompletedGenomes = readPreviousProgressFile();
-			System.out.println("***************************************************************");
+		String parameters = "k=" + k + " w=" + w + " ordering=" + MNBC_minimizer.ORDERING_NAMES[ordering] + " format=" + (binaryFormat ? "binary" : "text") + " filter=" + lengthThreshold;
+		try {
+			manifest = new MNBC_manifest(new File(outputDirPath), parameters);
+		} catch(IOException e) {
+			System.out.println("Error: can't open the manifest of the output directory " + outputDirPath + " - " + e.getMessage());
+			System.exit(1);
+		}
+		for(File file : new File(outputDirPath).listFiles((dir, name) -> name.endsWith(MNBC_manifest.TEMP_SUFFIX))) {
+			file.delete(); //Count file left unfinished by an interrupted build
 		}
 		
 		ExecutorService nested = Executors.newFixedThreadPool(numberOfThreads);
 		CompletionService<String> pool = new ExecutorCompletionService<String>(nested);
+		chunkPool = new ForkJoinPool(numberOfThreads);
 		//System.out.println("Created a thread pool");
 		
-		int taskCounter = 0;
-		File[] trainingGenomes = new File(referenceGenomeDirPath).listFiles();
-		if(previousProgressPath == null) {
-			for(int i = 0; i < trainingGenomes.length; i++) {
-				pool.submit(new ReferenceGenomeProcessor(trainingGenomes[i], i));
+		ArrayList<File> trainingGenomes = new ArrayList<File>();
+		int numberOfCompletedGenomes = 0;
+		for(File trainingGenome : new File(referenceGenomeDirPath).listFiles()) {
+			if(manifest.isComplete(trainingGenome)) {
+				numberOfCompletedGenomes++;
+			} else {
+				trainingGenomes.add(trainingGenome);
 			}
-			taskCounter = trainingGenomes.length;			
-		} else {
-			for(int i = 0; i < trainingGenomes.length; i++) {
-				if(!previouslyCompletedGenomes.contains(trainingGenomes[i].getName())) {
-					pool.submit(new ReferenceGenomeProcessor(trainingGenomes[i], i));
-					taskCounter++;
-				}				
-			}			
-		}		
-		System.out.println("Building " + taskCounter + " reference sequences");
+		}
+		if(numberOfCompletedGenomes > 0) {
+			System.out.println("Skipping " + numberOfCompletedGenomes + " reference sequences already completed according to " + MNBC_manifest.FILENAME);
+		}
+		//Longest processing time first: the largest genomes start first instead of running alone at the end of the build
+		trainingGenomes.sort(Comparator.comparingLong(MNBC_build::estimateGenomeLength).reversed());
+		int taskCounter = trainingGenomes.size();
+		System.out.println("Building " + taskCounter + " reference sequences, largest first, within a memory budget of " + (memoryBudget >> 20) + " MB");
 		
+		//Genomes are admitted in order while their estimated peak memory fits in the budget next to the running ones (a genome over the
+		//whole budget runs alone), and at most one per thread, so running genomes never hold more than the budget between them
+		HashMap<Future<String>, Long> runningEstimates = new HashMap<Future<String>, Long>();
+		long reservedMemory = 0;
+		int nextTask = 0;
 		for(int i = 0; i < taskCounter; i++) {
+			while(nextTask < taskCounter && runningEstimates.size() < numberOfThreads) {
+				long estimate = estimatePeakMemory(trainingGenomes.get(nextTask));
+				if(!runningEstimates.isEmpty() && reservedMemory + estimate > memoryBudget) {
+					break;
+				}
+				runningEstimates.put(pool.submit(new ReferenceGenomeProcessor(trainingGenomes.get(nextTask), nextTask, estimate)), estimate);
+				reservedMemory += estimate;
+				nextTask++;
+			}
+			
 			try {
 				//System.out.println("Waiting to get outcome of " + i + "th returned task...");
-				String outcome = pool.take().get();
+				Future<String> task = pool.take();
+				reservedMemory -= runningEstimates.remove(task);
+				String outcome = task.get();
 				
 				if(outcome.contains("Finished")) {
 					System.out.println("Congratulations! This task is successful: " + outcome);
@@ -134,307 +180,347 @@ public class MNBC_build { //Based on NaiveBayesClassifierCount_V3, only use cano
 		}
 		
 		nested.shutdown();
+		chunkPool.shutdown();
+		try {
+			manifest.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
 		long endTime = System.nanoTime();
 		System.out.println("done in " + ((endTime - startTime) / 1000000000) + " seconds");		
 	}
 	
+	private static long estimateGenomeLength(File genomeFile) { //Number of bases, assuming gzip shrinks sequences about 4 times
+		return genomeFile.length() * (genomeFile.getName().endsWith(".gz") ? 4 : 1);
+	}
+	
+	//Peak memory of a genome's task: the minimizer hash set, sized for about 2/(w+1) of the bases being minimizers, its sorted copy
+	//for the count file, the bases of a chromosome held back until it passes the length filter, and the chunks of a long chromosome
+	private static long estimatePeakMemory(File genomeFile) {
+		long length = estimateGenomeLength(genomeFile);
+		long numberOfMinimizers = 2 * length / (w + 1);
+		int width = MNBC_minimizer.isLong(k) ? 8 : 4;
+		long chunkMemory = (length > CHUNK_LENGTH) ? CHUNK_LENGTH + numberOfThreads * getChunkMemory() : 0;
+		return MNBC_db.getHashSetBytes(numberOfMinimizers, width) + width * numberOfMinimizers + Math.min(length, lengthThreshold) + chunkMemory + (1 << 20);
+	}
+	
+	private static long getChunkMemory() { //Bases and minimizer set of one running chunk task
+		return CHUNK_LENGTH + MNBC_db.getHashSetBytes(2 * CHUNK_LENGTH / (w + 1), MNBC_minimizer.isLong(k) ? 8 : 4);
+	}
+	
 	private static void printHelpInfo() {
 		System.out.println("This MNBC_build tool (v1.2) builds a reference database from a set of sequence files.");
 		System.out.println("-h:	Show this help menu");		
-		System.out.println("-c:	Number of threads");		
+		System.out.println("-c:	Number of threads (chromosomes longer than 4 Mb are also split into overlapping chunks extracted in parallel)");		
 		System.out.println("-i:	Input directory containing the (gzipped) files of reference sequences (e.g. GCF_000009045.1_ASM904v1_genomic.fna.gz is a reference genome sequence file downloaded from RefSeq)");
 		System.out.println("-o:	Exiting output database directory");
-		System.out.println("-k (optional):	K-mer length (an integer between 1 and 15 inclusive) (default 15)");
+		System.out.println("-k (optional):	K-mer length (an integer between 1 and 31 inclusive, minimizers of k above 15 take 64 bits instead of 32) (default 15)");
+		System.out.println("-w (optional): Window size in number of consecutive k-mers (an integer >= 1). Each window contributes its smallest k-mer as a minimizer, so about 2/(w+1) of the k-mers are kept: larger values give smaller databases and faster classification at some cost in sensitivity (e.g. w=2k about halves both). Classify must use the same value (default k)");
+		System.out.println("-a (optional): Ordering of the k-mers choosing the minimizer of each window (alphabetical: smallest k-mer in ACGT order, which over-selects low-complexity k-mers such as poly-A; hash: smallest k-mer under an invertible hash, spreading minimizers evenly, which gives smaller databases and fewer spurious candidate genomes per read). Classify must use the same value (default alphabetical)");
 		System.out.println("-f (optional): Filtering threshold on the sequence length (an integer >= 0). Chromosomes with lengths below this threshold are ignored as well as all plasmids. The default value is 0 (i.e. all chromosomes are retained).");
-		System.out.println("-b (optional): Log file of the previous prematurely killed run (i.e. .out file in Slurm). This allows breakpoint resumption after the previous run exits abnormally.");
-	}
-	
-	private static HashSet<String> readPreviousProgressFile() {
-		HashSet<String> previouslyCompletedGenomes = new HashSet<String>();
-		
-		try {
-			BufferedReader reader = new BufferedReader(new FileReader(previousProgressPath));
-			String line = null;
-			while((line = reader.readLine()) != null) {
-				if(line.contains("Finished")) {
-					String[] fields = line.split("\\s+");
-					previouslyCompletedGenomes.add(fields[13]);
-					System.out.println(line);
-				}
-			}
-			reader.close();
-		} catch(Exception e) {
-			System.out.println("Exception - can't read the previous Progress file " + previousProgressPath);
-			e.printStackTrace();
-			System.exit(1);
-		}
-		
-		return previouslyCompletedGenomes;
+		System.out.println("-m (optional): Memory budget in MB of the genomes processed at the same time. Genomes are processed largest first, each admitted once its estimated peak memory (from its file size) fits in the budget next to the running ones, and every finished genome reports its peak estimated again from its final number of minimizers (default 80% of the maximum heap size '-Xmx')");
+		System.out.println("-t (optional): Type of the database files (text: gzipped decimal minimizers in ascending order; binary: sorted delta-encoded minimizers with a checksum, much faster to load in classify) (default text)");
 	}
 	
 	private static class ReferenceGenomeProcessor implements Callable<String> {
 		private File referenceGenome;
 		private int id;
+		private long estimatedPeakMemory;
+		private boolean isLong;
+		private MutableIntSet minimizers;
+		private MutableLongSet longMinimizers;
+		private long kmerTotalCount; //Total number of valid kmers in one strand, then both
+		private MNBC_minimizer.Extractor extractor;
+		private MNBC_minimizer.KmerCounter kmerCounter;
+		private int numberOfChromosomes; //Retained so far
+		private long chromosomeLength;
+		private byte[] heldBases; //Bases of the current chromosome held back until it reaches the length filter (-f)
+		private int heldLength;
+		private long extractedLength; //Bases of the current chromosome streamed through the extractor or into chunks
+		private byte[] recentBases; //Last w+k-2 bases streamed through the extractor, starting the first chunk handed to a chunk task
+		private byte[] chunk; //Bases of the current chunk of a long chromosome, after the overlap with the previous chunk, null until the first
+		private int chunkLength;
+		private ArrayDeque<ChunkExtractor> runningChunks; //Submitted chunk tasks in order, merged into the genome's minimizers
+		private long peakChunkMemory;
+		private CRC32 checksum; //Of the decompressed genome file
 		
-		public ReferenceGenomeProcessor(File aReferenceGenome, int anID) {
+		public ReferenceGenomeProcessor(File aReferenceGenome, int anID, long anEstimatedPeakMemory) {
 			referenceGenome = aReferenceGenome;
 			id = anID;
+			estimatedPeakMemory = anEstimatedPeakMemory;
 		}
 
 		@Override
 		public String call() {			
-			//long startTime = System.nanoTime();
+			long startTime = System.nanoTime();
 			String filename = referenceGenome.getName();
 			System.out.println("Task " + id + " - start processing genome " + filename + "...");
-			HashSet<String> minimizers = new HashSet<String>();
-			int kmerTotalCount = 0; //Total number of valid kmers in both strands
+			isLong = MNBC_minimizer.isLong(k);
+			minimizers = isLong ? null : new IntHashSet();
+			longMinimizers = isLong ? new LongHashSet() : null;
+			extractor = new MNBC_minimizer.Extractor(k, w, ordering);
+			kmerCounter = new MNBC_minimizer.KmerCounter(k);
+			heldBases = new byte[0];
+			recentBases = new byte[w + k - 2];
+			runningChunks = new ArrayDeque<ChunkExtractor>();
+			checksum = new CRC32();
 			
 			try {
-				ArrayList<StringBuilder> chromosomes = readGenomeFile(referenceGenome);
-				if(chromosomes.isEmpty()) {
+				extractGenomeFile(referenceGenome);
+				mergeChunks(0);
+				if(numberOfChromosomes == 0) {
+					manifest.add(new MNBC_manifest.Entry(filename, referenceGenome.length(), checksum.getValue(), MNBC_manifest.NO_COUNT_FILE, 0, 0, 0));
 					return "Task " + id + " - Finished the genome count file(whole_genome_filtered_out_by_length) " + filename;
 				}
 				
-				System.out.println("Task " + id + " - read " + chromosomes.size() + " chromosomes");				
-				for(int m = 0; m < chromosomes.size(); m++) {
-					System.out.println("Task " + id + " - start processing " + m + "th chromosome...");
-					StringBuilder chromosome = chromosomes.get(m);
-					
-					MutableIntSet indicesOfInvalidKmers = new IntHashSet();
-					StringBuilder minusSequence = new StringBuilder();
-					int length = chromosome.length();
-					for(int i = length - 1; i >= 0; i--) {
-						char base = chromosome.charAt(i);
-						switch(base) {
-							case 'A':
-								minusSequence.append('T');
-								break;
-							case 'C':
-								minusSequence.append('G');
-								break;
-							case 'G':
-								minusSequence.append('C');
-								break;
-							case 'T':
-								minusSequence.append('A');
-								break;
-							default:
-								minusSequence.append(base);
-								for(int j = i - k + 1; j <= i; j++) {
-									indicesOfInvalidKmers.add(j);
-								}
-						}
-					}					
-					
-					int startIndexOfLastKmer = length - k;
-					String[] canonicalKmers = new String[startIndexOfLastKmer + 1]; //first get the canonical kmer at each position
-					kmerTotalCount += startIndexOfLastKmer + 1 - indicesOfInvalidKmers.size();
-					
-					if(indicesOfInvalidKmers.isEmpty()) {						
-						for(int i = 0; i <= startIndexOfLastKmer; i++) {
-							String plusKmer = chromosome.substring(i, i + k);
-							String minusKmer = minusSequence.substring(startIndexOfLastKmer - i, length - i);
-							canonicalKmers[i] = (plusKmer.compareTo(minusKmer) < 0) ? plusKmer : minusKmer;
-						}
-						
-						//interior minimizers - first window
-						String minimizer = canonicalKmers[0];
-						for(int j = 1; j < k; j++) {
-							minimizer = (canonicalKmers[j].compareTo(minimizer) < 0) ? canonicalKmers[j] : minimizer;
-						}
-						minimizers.add(minimizer);
-
-						//interior minimizers - later windows incrementally
-						int indexOfLastWindowStartPosition = startIndexOfLastKmer - k + 1;					
-						for(int i = 1; i <= indexOfLastWindowStartPosition; i++) {
-							if(minimizer.equals(canonicalKmers[i - 1])) {
-								minimizer = canonicalKmers[i];
-								int indexOfFirstKmerAfterWindow = i + k;
-								for(int j = i + 1; j < indexOfFirstKmerAfterWindow; j++) {
-									minimizer = (canonicalKmers[j].compareTo(minimizer) < 0) ? canonicalKmers[j] : minimizer;
-								}
-							} else {
-								int indexOfLastKmerInWindow = i + k - 1;
-								minimizer = (canonicalKmers[indexOfLastKmerInWindow].compareTo(minimizer) < 0) ? canonicalKmers[indexOfLastKmerInWindow] : minimizer;
-							}
-							
-							minimizers.add(minimizer);					
-						}
-
-						//left end minimizers, dynamic programming
-						minimizer = canonicalKmers[0];
-						minimizers.add(minimizer);
-						for(int v = 1; v <= (k - 2); v++) { //here v is not the u in (u,k) in the paper, it is the index of the last/rightmost kmer in each (u,k) window (i.e. u - 1)
-							minimizer = (canonicalKmers[v].compareTo(minimizer) < 0) ? canonicalKmers[v] : minimizer;
-							minimizers.add(minimizer);					
-						}
-
-						//right end minimizers, dynamic programming
-						minimizer = canonicalKmers[startIndexOfLastKmer];
-						minimizers.add(minimizer);
-						for(int v = startIndexOfLastKmer - 1; v >= (startIndexOfLastKmer - k + 2); v--) { //here v is not the u in (u,k) in the paper, it is the index of the first/leftmost kmer in each (u,k) window
-							minimizer = (canonicalKmers[v].compareTo(minimizer) < 0) ? canonicalKmers[v] : minimizer;
-							minimizers.add(minimizer);					
-						}
-					} else {
-						for(int i = 0; i <= startIndexOfLastKmer; i++) {
-							if(!indicesOfInvalidKmers.contains(i)) {
-								String plusKmer = chromosome.substring(i, i + k);
-								String minusKmer = minusSequence.substring(startIndexOfLastKmer - i, length - i);
-								canonicalKmers[i] = (plusKmer.compareTo(minusKmer) < 0) ? plusKmer : minusKmer;
-							}
-						}
-						
-						//interior minimizers - first window
-						String minimizer = "Z";
-						for(int j = 0; j < k; j++) {
-							if(canonicalKmers[j] != null) {
-								minimizer = (canonicalKmers[j].compareTo(minimizer) < 0) ? canonicalKmers[j] : minimizer;
-							}
-						}
-						if(minimizer.length() == k) {
-							minimizers.add(minimizer);
-						}
-
-						//interior minimizers - later windows incrementally
-						int indexOfLastWindowStartPosition = startIndexOfLastKmer - k + 1;					
-						for(int i = 1; i <= indexOfLastWindowStartPosition; i++) {
-							if(minimizer.equals(canonicalKmers[i - 1])) {
-								minimizer = "Z";
-								int indexOfFirstKmerAfterWindow = i + k;
-								for(int j = i; j < indexOfFirstKmerAfterWindow; j++) {
-									if(canonicalKmers[j] != null) {
-										minimizer = (canonicalKmers[j].compareTo(minimizer) < 0) ? canonicalKmers[j] : minimizer;
-									}
-								}
-							} else {
-								int indexOfLastKmerInWindow = i + k - 1;
-								if(canonicalKmers[indexOfLastKmerInWindow] != null) {
-									minimizer = (canonicalKmers[indexOfLastKmerInWindow].compareTo(minimizer) < 0) ? canonicalKmers[indexOfLastKmerInWindow] : minimizer;
-								}
-							}
-							
-							if(minimizer.length() == k) {
-								minimizers.add(minimizer);
-							}
-						}
-
-						//left end minimizers, dynamic programming
-						minimizer = "Z";
-						for(int v = 0; v <= (k - 2); v++) { //here v is not the u in (u,k) in the paper, it is the index of the last/rightmost kmer in each (u,k) window (i.e. u - 1)
-							if(canonicalKmers[v] != null) {
-								minimizer = (canonicalKmers[v].compareTo(minimizer) < 0) ? canonicalKmers[v] : minimizer;
-								minimizers.add(minimizer);
-							}
-						}
-
-						//right end minimizers, dynamic programming
-						minimizer = "Z";
-						for(int v = startIndexOfLastKmer; v >= (startIndexOfLastKmer - k + 2); v--) { //here v is not the u in (u,k) in the paper, it is the index of the first/leftmost kmer in each (u,k) window
-							if(canonicalKmers[v] != null) {
-								minimizer = (canonicalKmers[v].compareTo(minimizer) < 0) ? canonicalKmers[v] : minimizer;
-								minimizers.add(minimizer);
-							}
-						}
-					}					
-				}
-				
+				System.out.println("Task " + id + " - read " + numberOfChromosomes + " chromosomes");
 				kmerTotalCount = kmerTotalCount * 2;
-				System.out.println("Task " + id + " - valid k-mer count: " + kmerTotalCount + ", minimizer count: " + minimizers.size());				
+				System.out.println("Task " + id + " - valid k-mer count: " + kmerTotalCount + ", minimizer count: " + (isLong ? longMinimizers.size() : minimizers.size()));				
 			} catch(Exception e) {
 				e.printStackTrace();
 				return "Task " + id + " - Exception on " + filename;
 			}
 			
+			long numberOfMinimizers = isLong ? longMinimizers.size() : minimizers.size();
 			try {
-				PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputDirPath + "/" + filename.substring(0, filename.length() - (filename.endsWith(".gz") ? 7 : 4)) + "_count.gz")), "UTF-8")), true);
-				writer.println(kmerTotalCount);
-				for(String minimizer : minimizers) {
-					//System.out.println("Minimizer " + minimizer);
-					writer.println(convertKmerToIndex(minimizer));					
+				//Minimizers are written in ascending order in both formats, so the count file doesn't depend on the order they were found in.
+				//The file is written under a temporary name and only journaled in the manifest once renamed
+				String countFilename = filename.substring(0, filename.length() - (filename.endsWith(".gz") ? 7 : 4)) + (binaryFormat ? MNBC_db.BINARY_SUFFIX : MNBC_db.TEXT_SUFFIX);
+				File countFile = new File(outputDirPath, countFilename);
+				File tempFile = new File(outputDirPath, countFilename + MNBC_manifest.TEMP_SUFFIX);
+				if(binaryFormat) {
+					if(isLong) {
+						MNBC_db.writeBinaryCountFile(tempFile, k, w, ordering, kmerTotalCount, longMinimizers.toSortedArray());
+					} else {
+						MNBC_db.writeBinaryCountFile(tempFile, k, w, ordering, kmerTotalCount, minimizers.toSortedArray());
+					}
+				} else {
+					PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tempFile)), "UTF-8")), true);
+					writer.println(kmerTotalCount);
+					if(isLong) {
+						for(long minimizer : longMinimizers.toSortedArray()) {
+							writer.println(minimizer);
+						}
+					} else {
+						for(int minimizer : minimizers.toSortedArray()) {
+							writer.println(minimizer);
+						}
+					}
+					writer.close();
 				}
-				writer.close();
+				MNBC_manifest.commit(tempFile, countFile);
+				manifest.add(new MNBC_manifest.Entry(filename, referenceGenome.length(), checksum.getValue(), countFilename, countFile.length(), numberOfMinimizers, kmerTotalCount));
 			} catch(IOException e) {
 				e.printStackTrace();
 				return "Task " + id + " - Exception on writing count file of reference sequence: " + filename;
 			}
-			//long endTime = System.nanoTime();
-			//long runningTime = (endTime - startTime) / 1000000000;
+			long endTime = System.nanoTime();
+			long runningTime = (endTime - startTime) / 1000000000;
+			int width = isLong ? 8 : 4;
+			//Not measured, other genomes share the heap: the same sizes as estimatePeakMemory(), from the final number of minimizers
+			long peakMemory = MNBC_db.getHashSetBytes(numberOfMinimizers, width) + width * numberOfMinimizers + heldBases.length + peakChunkMemory;
 			
-			return "Task " + id + " - Finished the genome count file " + filename/* + " in " + runningTime + " seconds"*/;
+			return "Task " + id + " - Finished the genome count file " + filename + " in " + runningTime + " seconds, peak memory estimated from final size " + (peakMemory >> 20) + " MB (admitted with " + (estimatedPeakMemory >> 20) + " MB estimated from file size)";
 		}
 		
-		private int convertKmerToIndex(String kmer) {
-			int index = 0;
+		//Streams the genome file through the extractor as its bytes arrive, so memory doesn't grow with the genome: a chromosome is only held
+		//back until it passes the length filter (-f), and past its first CHUNK_LENGTH bases it is cut into chunks extracted in parallel. Lines are split
+		//and trimmed as BufferedReader.readLine() and String.trim() would, so whitespace inside a sequence line still counts as an invalid base.
+		//The checksum of the file contents goes into the manifest
+		private void extractGenomeFile(File genomeFile) throws IOException {
+			InputStream in = MNBC_gzip.open(genomeFile, true);
+			byte[] buffer = new byte[1 << 16];
+			StringBuilder header = new StringBuilder();
+			boolean retain = true; //Whether the current record is not a plasmid
+			boolean lineStart = true;
+			boolean inHeader = false;
+			boolean lineHasBase = false; //Leading whitespace of a sequence line is dropped
+			int pendingWhitespace = 0; //Whitespace after the last base of the line, kept only if another base follows
 			
-			int lastCharIndex = k - 1;
-			for(int i = lastCharIndex; i >= 0; i--) {
-				switch(kmer.charAt(i)) {
-					case 'C':
-						index += (int) Math.pow(4, lastCharIndex - i);
-						break;
-					case 'G':
-						index += 2 * ((int) Math.pow(4, lastCharIndex - i));
-						break;
-					case 'T':
-						index += 3 * ((int) Math.pow(4, lastCharIndex - i));
-						break;
+			int n;
+			while((n = in.read(buffer)) > 0) {
+				checksum.update(buffer, 0, n);
+				for(int i = 0; i < n; i++) {
+					int b = buffer[i] & 0xFF;
+					if(b == '\n' || b == '\r') {
+						if(inHeader) {
+							retain = !header.toString().toLowerCase().contains("plasmid");
+							inHeader = false;
+						}
+						lineStart = true;
+						continue;
+					}
+					
+					if(lineStart) {
+						lineStart = false;
+						if(b == '>') {
+							endChromosome();
+							header.setLength(0);
+							inHeader = true;
+							continue;
+						}
+						lineHasBase = false;
+						pendingWhitespace = 0;
+					}
+					
+					if(inHeader) {
+						header.append((char) b);
+					} else if(retain) {
+						if(b <= ' ') {
+							if(lineHasBase) {
+								pendingWhitespace++;
+							}
+						} else {
+							for(; pendingWhitespace > 0; pendingWhitespace--) {
+								addBase(' ');
+							}
+							addBase(b);
+							lineHasBase = true;
+						}
+					}
 				}
 			}
-			
-			return index;
+			in.close();
+			endChromosome();
 		}
 		
-		private ArrayList<StringBuilder> readGenomeFile(File genomeFile) throws FileNotFoundException, IOException {
-			ArrayList<StringBuilder> chromosomes = new ArrayList<StringBuilder>();		
-			StringBuilder chromosome = new StringBuilder();
-			int chromosomeLength = 0;
-			boolean retain = true;
+		private void addBase(int base) {
+			chromosomeLength++;
+			kmerCounter.add(base);
+			if(chromosomeLength < lengthThreshold) { //Not known to be retained yet
+				if(heldLength == heldBases.length) {
+					heldBases = Arrays.copyOf(heldBases, Math.max(1 << 10, 2 * heldBases.length));
+				}
+				heldBases[heldLength++] = (byte) base;
+				return;
+			}
 			
-			BufferedReader reader = null;
-			if(genomeFile.getName().endsWith(".gz")) {
-				reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(genomeFile)), "UTF-8"));
-			} else {
-				reader = new BufferedReader(new FileReader(genomeFile));
+			if(chromosomeLength == Math.max(1, lengthThreshold)) {
+				System.out.println("Task " + id + " - start processing " + numberOfChromosomes + "th chromosome...");
+				extractor.setEnds(true, true);
+				if(isLong) {
+					extractor.start(longMinimizers);
+				} else {
+					extractor.start(minimizers);
+				}
+				for(int i = 0; i < heldLength; i++) {
+					extractBase(heldBases[i]);
+				}
+				heldLength = 0;
 			}
-								
-			String line = null;
-			while((line = reader.readLine()) != null) {
-				if(line.startsWith(">")) {
-					line = line.toLowerCase();
-					
-					if(chromosomeLength != 0) {						
-						if(chromosomeLength >= lengthThreshold) {
-							chromosomes.add(chromosome);							
-						}
-						chromosomeLength = 0;
-						chromosome = new StringBuilder();				
-					}
-					
-					if(line.contains("plasmid")) {
-						retain = false;
-						continue;
-					} else {
-						retain = true;
-						continue;
+			extractBase(base);
+		}
+		
+		//The first CHUNK_LENGTH bases of a chromosome go straight through the task's own extractor. A longer chromosome makes that its first
+		//chunk, and the rest is cut into chunks handed to the chunk pool
+		private void extractBase(int base) {
+			int overlap = recentBases.length;
+			if(chunk == null) {
+				if(extractedLength < CHUNK_LENGTH || overlap >= CHUNK_LENGTH) {
+					extractor.add(base);
+					if(overlap > 0) {
+						recentBases[(int) (extractedLength % overlap)] = (byte) base;
 					}
+					extractedLength++;
+					return;
+				}
+				
+				extractor.setEnds(true, false); //The right end is the last chunk's
+				extractor.finish();
+				chunk = new byte[CHUNK_LENGTH];
+				for(int i = 0; i < overlap; i++) {
+					chunk[i] = recentBases[(int) ((extractedLength - overlap + i) % overlap)];
+				}
+				chunkLength = overlap;
+			} else if(chunkLength == CHUNK_LENGTH) { //The full chunk isn't the last one
+				submitChunk(false);
+			}
+			chunk[chunkLength++] = (byte) base;
+			extractedLength++;
+		}
+		
+		private void endChromosome() { //Chromosomes that never reached the length filter are dropped
+			if(chromosomeLength != 0 && chromosomeLength >= lengthThreshold) {
+				if(chunk == null) { //Chromosome streamed through the extractor as a whole
+					extractor.finish();
 				} else {
-					if(retain) {
-						line = line.trim();
-						chromosomeLength += line.length();
-						chromosome = chromosome.append(line.toUpperCase());
-						continue;
-					}
+					submitChunk(true);
+					chunk = null;
 				}
-			}			
-			if(chromosomeLength != 0) {
-				if(chromosomeLength >= lengthThreshold) {
-					chromosomes.add(chromosome);
+				kmerTotalCount += kmerCounter.getKmerCount();
+				numberOfChromosomes++;
+			}
+			chromosomeLength = 0;
+			kmerCounter.reset();
+			heldLength = 0;
+			extractedLength = 0;
+			chunkLength = 0;
+		}
+		
+		//Hands the current chunk to the chunk pool and starts the next one with its last w+k-2 bases, one base less than a window, so that
+		//every window of the chromosome lies in one chunk. At most numberOfThreads chunks of a genome run at once
+		private void submitChunk(boolean lastChunk) {
+			ChunkExtractor task = new ChunkExtractor(chunk, chunkLength, lastChunk);
+			chunkPool.execute(task);
+			runningChunks.add(task);
+			if(!lastChunk) {
+				int overlap = recentBases.length;
+				byte[] nextChunk = new byte[CHUNK_LENGTH];
+				System.arraycopy(chunk, chunkLength - overlap, nextChunk, 0, overlap);
+				chunk = nextChunk;
+				chunkLength = overlap;
+			}
+			peakChunkMemory = Math.max(peakChunkMemory, chunk.length + runningChunks.size() * getChunkMemory());
+			mergeChunks(numberOfThreads);
+		}
+		
+		private void mergeChunks(int numberOfRemainingChunks) { //Waits for the oldest chunk tasks until only the given number are running
+			while(runningChunks.size() > numberOfRemainingChunks) {
+				ChunkExtractor task = runningChunks.poll();
+				task.join();
+				if(isLong) {
+					longMinimizers.addAll(task.longMinimizers);
+				} else {
+					minimizers.addAll(task.minimizers);
 				}
-			}			
-			reader.close();			
-			
-			return chromosomes;
+			}
+		}
+	}
+	
+	//Extracts the minimizers of one chunk of a long chromosome into its own set. Overlapping chunks cover every window of the chromosome,
+	//so their minimizers add up to the chromosome's, given that only the first and last chunks get the chromosome's end minimizers.
+	//The first chunk is extracted by the genome's task as it streams, so chunk tasks never get the left end
+	private static class ChunkExtractor extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private byte[] bases;
+		private int length;
+		private boolean lastChunk;
+		private MutableIntSet minimizers;
+		private MutableLongSet longMinimizers;
+		
+		public ChunkExtractor(byte[] someBases, int aLength, boolean isLastChunk) {
+			bases = someBases;
+			length = aLength;
+			lastChunk = isLastChunk;
+		}
+		
+		@Override
+		protected void compute() {
+			MNBC_minimizer.Extractor extractor = new MNBC_minimizer.Extractor(k, w, ordering);
+			extractor.setEnds(false, lastChunk);
+			int expectedSize = 2 * length / (w + 1);
+			if(MNBC_minimizer.isLong(k)) {
+				longMinimizers = new LongHashSet(expectedSize);
+				extractor.start(longMinimizers);
+			} else {
+				minimizers = new IntHashSet(expectedSize);
+				extractor.start(minimizers);
+			}
+			for(int i = 0; i < length; i++) {
+				extractor.add(bases[i]);
+			}
+			extractor.finish();
+			bases = null;
 		}
 	}
 }
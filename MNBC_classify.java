@@ -6,16 +6,16 @@
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.TreeMap;
-import java.util.Map.Entry;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
@@ -23,36 +23,75 @@ import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.eclipse.collections.api.iterator.IntIterator;
-import org.eclipse.collections.api.iterator.MutableIntIterator;
+import org.eclipse.collections.api.iterator.LongIterator;
 import org.eclipse.collections.api.list.primitive.MutableIntList;
-import org.eclipse.collections.api.set.primitive.MutableIntSet;
+import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
+import org.eclipse.collections.api.map.primitive.MutableLongIntMap;
+import org.eclipse.collections.api.set.primitive.MutableLongSet;
 import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
-import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
 
 public class MNBC_classify { //Previously called MNBC_classify2_onlydelta1000
 	private static int k = 15;
+	private static int w; //Window size in k-mers, k if not set
+	private static int ordering = MNBC_minimizer.ALPHABETICAL; //K-mer ordering the database was built with
 	private static int numberOfThreads;
 	private static float kmerPenalty = -2000.0F;
 	private static float delta = 1500.0F;
 	private static String dbDirPath;
 	private static String metaFilePath; //Example filename: refSeq_prokaryote_complete_genomes_ok_status_metainfo_300k.txt
 	private static String outputFilePath;
+	private static String outputCompression = MNBC_gzip.NONE;
 	private static boolean readType; //Whether reads are paired-end
 	private static String startPath;
 	private static String endPath;
 	private static float unclassifiedThreshold = 0.35F;
+	private static String scoringStrategy = "genome";
+	private static boolean useInvertedIndex; //Score only genomes sharing minimizers with the read, found via the inverted index
+	private static boolean useBatchScoring; //Test all minimizers of a read batch against one genome at a time, while it is in cache
+	private static boolean useCascade; //Test the read against clades first, then only against the genomes of the clades that can reach the voting set
+	private static float ubiquityCutoff; //Read minimizers in at least this fraction of the genomes count as shared with all of them without probing, 0 if off
+	private static String frequencyTablePath; //MNBC_frequency table of the database
+	private static int cladeRank = 1; //Index in MNBC_aggregate.RANKS of the clades of the cascade, genus by default
+	private static String minimizerStorage = MNBC_db.HASH; //Backend of genomeMinimizers for database directories
 	
 	private static String[] genomeIds;
 	private static float[] logFres;
-	private static MutableIntSet[] genomeMinimizers;
-	private static HashMap<String, String[]> completeGenomeId2TaxIds;	
+	private static MNBC_db.MinimizerSet[] genomeMinimizers;
+	private static MinimizerIndex minimizerIndex;
+	private static int[][] cladeGenomes; //Ascending genomes of each clade of the cascade
+	private static MNBC_db.MinimizerSet[] cladeMinimizers; //Union of the minimizers of each clade's genomes
+	private static float[] cladeMaxLogFres; //Greatest logFre of each clade's genomes
+	private static AtomicLong cascadeReadCount = new AtomicLong(); //Reads scored by the cascade
+	private static AtomicLong widenedReadCount = new AtomicLong(); //Reads whose genomes were scored in more than the top clade
+	private static AtomicLong cascadeGenomeCount = new AtomicLong(); //Genomes scored by the cascade over all reads
+	private static MutableLongSet ubiquitousMinimizers; //Minimizers in at least ubiquityCutoff of the genomes
+	private static AtomicLong probeCount = new AtomicLong(); //Read minimizers tested against genome (or clade) minimizer sets
+	private static AtomicLong skippedProbeCount = new AtomicLong(); //Tests saved on ubiquitous minimizers
+	private static AtomicLong thresholdSkippedProbeCount = new AtomicLong(); //Tests saved by abandoning genomes that can't reach the filtering threshold
+	private static AtomicLong deltaSkippedProbeCount = new AtomicLong(); //Tests saved by abandoning genomes that can't get within delta of the best score
+	private static AtomicLong rescoredGenomeCount = new AtomicLong(); //Abandoned genomes scored after all, as the voting set reached down to them
+	private static int[][] genomeTaxa; //Taxon numbers (species, genus, family, order, class, phylum, kingdom, domain) of each genome, aligned with genomeIds
+	private static int[] taxonOrder; //Position of each taxon in ascending taxid order, for choosing between equally voted species
+	private static byte[][] genomeOutputFields; //Output fields of a read assigned to each genome: tab-separated taxon IDs and accession
+	private static byte[][] genomeListEntries; //';' followed by the accession of each genome, appended for further candidate genomes
 	private static HashSet<String> finishedReadIds;
-	private static BlockingQueue<String[]> readQueue; //Balance producer and consumers
-	private static BlockingQueue<String> resultQueue; //Balance consumers and writer
+	private static int batchSize; //0 until set, then defaults to 1024, or 8192 for batch scoring
+	private static BlockingQueue<ReadBatch> readQueue; //Balance producer and consumers
+	private static BlockingQueue<ReadBatch> freeBatches; //Emptied batches returned by consumers for the producer to refill
+	private static BlockingQueue<ResultBlock> resultQueue; //Balance consumers and writer, each element holds the output lines of one read batch
+	private static BlockingQueue<ResultBlock> freeResultBlocks; //Written blocks returned by the writer for consumers to refill
+	private static final ReadBatch END_OF_READS = new ReadBatch(0);
+	private static final ResultBlock END_OF_RESULTS = new ResultBlock();
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+	private static final int MAX_BATCH_SCORES = 1 << 24; //Reads times genomes scored in one pass of batch scoring, bounding the scores held (20 bytes each)
+	private static AtomicInteger runningConsumerCount;
 	private static AtomicInteger erroredConsumerCount = new AtomicInteger();
 	
 	public static void execute(String[] args) {
@@ -73,6 +112,12 @@ public class MNBC_classify { //Previously called MNBC_classify2_onlydelta1000
 					case 'e':
 						delta = Float.parseFloat(args[i + 1]);
 						break;
+					case 'a':
+						ordering = MNBC_minimizer.parseOrdering(args[i + 1]);
+						break;
+					case 'w':
+						w = Integer.parseInt(args[i + 1]);
+						break;
 					case 'c':
 						numberOfThreads = Integer.parseInt(args[i + 1]);
 						break;
@@ -88,6 +133,27 @@ public class MNBC_classify { //Previously called MNBC_classify2_onlydelta1000
 					case 'u':
 						unclassifiedThreshold = Float.parseFloat(args[i + 1]);
 						break;
+					case 'b':
+						batchSize = Integer.parseInt(args[i + 1]);
+						break;
+					case 's':
+						scoringStrategy = args[i + 1];
+						break;
+					case 'x':
+						ubiquityCutoff = Float.parseFloat(args[i + 1]);
+						break;
+					case 'f':
+						frequencyTablePath = args[i + 1];
+						break;
+					case 'l':
+						cladeRank = Arrays.asList(MNBC_aggregate.RANKS).indexOf(args[i + 1]);
+						break;
+					case 'z':
+						outputCompression = args[i + 1];
+						break;
+					case 'r':
+						minimizerStorage = args[i + 1];
+						break;
 					case 't':
 						readType = args[i + 1].equals("2") ? true : false; //The parameter value itself is "1" or "2"
 						startPath = args[i + 2];
@@ -102,10 +168,34 @@ public class MNBC_classify { //Previously called MNBC_classify2_onlydelta1000
 			}
 		}
 		
-		if((k <= 0) || (numberOfThreads == 0) || (dbDirPath == null) || (metaFilePath == null) || (outputFilePath == null) || (startPath == null)) {
+		if(batchSize == 0) {
+			batchSize = scoringStrategy.equals("batch") ? 8192 : 1024;
+		}
+		if(w == 0) {
+			w = k;
+		}
+		if((k <= 0) || (k > MNBC_minimizer.MAX_K) || (w <= 0) || (ordering < 0) || (ubiquityCutoff < 0.0F) || (ubiquityCutoff > 0.0F && ubiquityCutoff < (float) MNBC_frequency.MIN_FRACTION) || (ubiquityCutoff > 1.0F) || (cladeRank < 0) || !(scoringStrategy.equals("genome") || scoringStrategy.equals("index") || scoringStrategy.equals("batch") || scoringStrategy.equals("cascade")) || (batchSize < 0) || (numberOfThreads == 0) || !(minimizerStorage.equals(MNBC_db.HASH) || minimizerStorage.equals(MNBC_db.SORTED) || minimizerStorage.equals(MNBC_db.BITMAP) || minimizerStorage.equals(MNBC_db.OFF_HEAP)) || !(outputCompression.equals(MNBC_gzip.NONE) || outputCompression.equals(MNBC_gzip.GZIP) || outputCompression.equals(MNBC_gzip.BGZF)) || (dbDirPath == null) || (metaFilePath == null) || (outputFilePath == null) || (startPath == null)) {
 			System.out.println("Error: not all required parameters are correctly set -- Run 'MNBC classify -h' for help");
 			System.exit(0);
 		}
+		useInvertedIndex = scoringStrategy.equals("index");
+		useBatchScoring = scoringStrategy.equals("batch");
+		useCascade = scoringStrategy.equals("cascade");
+		if(MNBC_minimizer.isLong(k) && minimizerStorage.equals(MNBC_db.BITMAP)) {
+			System.out.println("Error: '-r bitmap' only supports k up to " + MNBC_minimizer.MAX_INT_K + " -- Run 'MNBC classify -h' for help");
+			System.exit(0);
+		}
+		if(ubiquityCutoff > 0.0F && useInvertedIndex) { //The index already tests each read minimizer once rather than once per genome
+			System.out.println("Error: '-x' doesn't apply to '-s index' -- Run 'MNBC classify -h' for help");
+			System.exit(0);
+		}
+		if(ubiquityCutoff > 0.0F && frequencyTablePath == null) {
+			if(new File(dbDirPath).isFile()) {
+				System.out.println("Error: '-x' with a packed database requires the document frequency table of its database directory with '-f' -- Run 'MNBC classify -h' for help");
+				System.exit(0);
+			}
+			frequencyTablePath = new File(dbDirPath, MNBC_frequency.FILENAME).getPath();
+		}
 		
 		long startTime = System.nanoTime();		
 		int numberOfCores = Runtime.getRuntime().availableProcessors();
@@ -114,69 +204,116 @@ public class MNBC_classify { //Previously called MNBC_classify2_onlydelta1000
 			System.out.println("WARNING - Number of available cores " + numberOfCores + " is less than requested number of threads " + numberOfThreads + ", exiting");
 			System.exit(1);
 		}
-		readQueue = new ArrayBlockingQueue<String[]>(numberOfThreads + 10);
-		resultQueue = new ArrayBlockingQueue<String>(numberOfThreads + 10);
+		readQueue = new ArrayBlockingQueue<ReadBatch>(2 * numberOfThreads + 2);
+		int numberOfBatches = 3 * numberOfThreads + 3; //Enough to fill readQueue while every consumer holds one
+		freeBatches = new ArrayBlockingQueue<ReadBatch>(numberOfBatches);
+		for(int i = 0; i < numberOfBatches; i++) {
+			freeBatches.add(new ReadBatch(batchSize));
+		}
+		resultQueue = new ArrayBlockingQueue<ResultBlock>(2 * numberOfThreads + 2);
+		freeResultBlocks = new ArrayBlockingQueue<ResultBlock>(numberOfBatches); //Enough to fill resultQueue while every consumer and the writer hold one
+		for(int i = 0; i < numberOfBatches; i++) {
+			freeResultBlocks.add(new ResultBlock());
+		}
 		
 		File outputFile = new File(outputFilePath);
-		if(outputFile.exists()) {			
+		if(outputFile.exists() && outputFile.length() > 0) {
 			readBaseOutputFile(outputFile);
-			System.out.println(finishedReadIds.size() + " reads have finished previously");
+			if(finishedReadIds != null) {
+				System.out.println(finishedReadIds.size() + " reads have finished previously");
+			}
 		}
 		
-		File[] countFiles = new File(dbDirPath).listFiles();
-		genomeIds = new String[countFiles.length];
-		logFres = new float[countFiles.length];
-		genomeMinimizers = new MutableIntSet[countFiles.length];
+		if(new File(dbDirPath).isFile()) {
+			readPackedDB();
+		} else {
+			checkManifest();
+			File[] countFiles = new File(dbDirPath).listFiles((dir, name) -> MNBC_db.isCountFile(name));
+			genomeIds = new String[countFiles.length];
+			logFres = new float[countFiles.length];
+			genomeMinimizers = new MNBC_db.MinimizerSet[countFiles.length];
+			
+			ExecutorService nested = Executors.newFixedThreadPool(numberOfCores - 1);
+			CompletionService<String> pool = new ExecutorCompletionService<String>(nested);
+			for(int i = 0; i < countFiles.length; i++) {
+				pool.submit(new DBReader(countFiles[i], i));
+			}
+			
+			for(int i = 0; i < countFiles.length; i++) {
+				try {
+					String outcome = pool.take().get();
+					if(outcome.contains("ERROR")) {
+						System.out.println(i + "th task failed (" + outcome + "), exiting");
+						System.exit(1);
+					}
+				} catch(Exception e) {
+					System.out.println("Exception on " + i + " th returned task, exiting");
+					e.printStackTrace();
+					System.exit(1);
+				}
+			}		
+			nested.shutdown();
+		}
+		long endTime = System.nanoTime();
+		System.out.println("Read DB in " + + ((endTime - startTime) / 1000000000) + " seconds");
+		long residentBytes = 0;
+		for(MNBC_db.MinimizerSet minimizers : genomeMinimizers) {
+			residentBytes += minimizers.getResidentBytes();
+		}
+		String storage = minimizerStorage;
+		if(new File(dbDirPath).isFile()) {
+			storage = "memory-mapped sorted arrays (outside the Java heap)";
+		} else if(minimizerStorage.equals(MNBC_db.OFF_HEAP)) {
+			storage = "sorted arrays in direct memory (outside the Java heap)";
+		}
+		System.out.println("Genome minimizers take " + (residentBytes >> 20) + " MB as " + storage);
 		
-		ExecutorService nested = Executors.newFixedThreadPool(numberOfCores - 1);
-		CompletionService<String> pool = new ExecutorCompletionService<String>(nested);
-		for(int i = 0; i < countFiles.length; i++) {
-			pool.submit(new DBReader(countFiles[i], i));
+		if(useInvertedIndex) {
+			minimizerIndex = new MinimizerIndex(genomeMinimizers);
+			genomeMinimizers = null; //The index replaces the per-genome sets during scoring
+			endTime = System.nanoTime();
+			System.out.println("Built inverted index of " + minimizerIndex.size() + " distinct minimizers in " + ((endTime - startTime) / 1000000000) + " seconds");
 		}
 		
-		for(int i = 0; i < countFiles.length; i++) {
+		readTaxonomy();
+		if(ubiquityCutoff > 0.0F) {
+			if(!new File(frequencyTablePath).exists()) {
+				System.out.println("ERROR: document frequency table " + frequencyTablePath + " not found, write it with 'MNBC frequency -d <database directory>', exiting");
+				System.exit(1);
+			}
 			try {
-				String outcome = pool.take().get();
-				if(outcome.contains("ERROR")) {
-					System.out.println(i + "th task failed (" + outcome + "), exiting");
-					System.exit(1);
-				}
-			} catch(Exception e) {
-				System.out.println("Exception on " + i + " th returned task, exiting");
-				e.printStackTrace();
+				ubiquitousMinimizers = MNBC_frequency.read(new File(frequencyTablePath), genomeIds, ubiquityCutoff);
+			} catch(IOException e) {
+				System.out.println("ERROR: failed reading document frequency table " + frequencyTablePath + " - " + e.getMessage() + ", exiting");
 				System.exit(1);
 			}
-		}		
-		nested.shutdown();
-		long endTime = System.nanoTime();
-		System.out.println("Read DB in " + + ((endTime - startTime) / 1000000000) + " seconds");
-		
-		completeGenomeId2TaxIds = readCompleteMeta();
+			System.out.println(ubiquitousMinimizers.size() + " minimizers are in at least " + MNBC_frequency.getMinFrequency(ubiquityCutoff, genomeIds.length) + " of the " + genomeIds.length + " genomes, counted as shared with every genome without testing them" + ((ubiquityCutoff < 1.0F) ? " (approximate)" : ""));
+		}
+		if(useCascade) {
+			buildClades();
+			endTime = System.nanoTime();
+			System.out.println("Built " + cladeGenomes.length + " " + MNBC_aggregate.RANKS[cladeRank] + " clades for the cascade in " + ((endTime - startTime) / 1000000000) + " seconds");
+		}
 		
 		new Thread(new Producer()).start();
 		
+		runningConsumerCount = new AtomicInteger(numberOfThreads);
 		for(int i = 0; i < numberOfThreads; i++) {
 			new Thread(new Consumer(i)).start();
 		}
 		System.out.println("Start classifying");
 		
-		int completedConsumerCounter = 0;
 		try {
-			PrintWriter writer = null;
+			OutputStream writer = MNBC_gzip.create(outputFile, finishedReadIds != null, outputCompression);
 			if(finishedReadIds == null) {
-				writer = new PrintWriter(new FileWriter(outputFilePath), true);
-				writer.println("Read\tSpecies\tGenus\tFamily\tOrder\tClass\tPhylum\tKingdom\tDomain\tCandidates");
-			} else {
-				writer = new PrintWriter(new FileWriter(outputFilePath, true), true);
-			}			
+				writer.write(("Read\tSpecies\tGenus\tFamily\tOrder\tClass\tPhylum\tKingdom\tDomain\tCandidates" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+			}
 			
-			while((completedConsumerCounter + erroredConsumerCount.get()) < numberOfThreads) {
-				String outcome = resultQueue.take();
-				if(outcome.endsWith("- finished")) {
-					completedConsumerCounter++;
-				} else {
-					writer.println(outcome);
-				}
+			ResultBlock results = null;
+			while((results = resultQueue.take()) != END_OF_RESULTS) {
+				writer.write(results.bytes, 0, results.length);
+				results.clear();
+				freeResultBlocks.put(results);
 			}
 			writer.close();
 		} catch(Exception e) {
@@ -184,15 +321,113 @@ public class MNBC_classify { //Previously called MNBC_classify2_onlydelta1000
 			System.exit(1);
 		}
 		
+		if(useCascade && cascadeReadCount.get() > 0) {
+			System.out.println("Cascade scored " + String.format("%.1f", (double) cascadeGenomeCount.get() / cascadeReadCount.get()) + " of " + genomeIds.length + " genomes per read on average, widening beyond the top " + MNBC_aggregate.RANKS[cladeRank] + " for " + widenedReadCount.get() + " of " + cascadeReadCount.get() + " reads (" + String.format("%.2f", 100.0 * widenedReadCount.get() / cascadeReadCount.get()) + "%)");
+		}
+		if(!useInvertedIndex && !useBatchScoring && !useCascade) {
+			long skippedProbes = thresholdSkippedProbeCount.get() + deltaSkippedProbeCount.get();
+			long probes = probeCount.get() + skippedProbes;
+			System.out.println("Early termination skipped " + skippedProbes + " of " + probes + " minimizer tests (" + String.format("%.2f", (probes == 0) ? 0.0 : 100.0 * skippedProbes / probes) + "%): " + thresholdSkippedProbeCount.get() + " on genomes below the filtering threshold, " + deltaSkippedProbeCount.get() + " on genomes more than delta below the best score, of which " + rescoredGenomeCount.get() + " genomes were scored after all");
+		}
+		if(ubiquitousMinimizers != null) {
+			long probes = probeCount.get() + skippedProbeCount.get();
+			System.out.println("Skipped " + skippedProbeCount.get() + " of " + probes + " minimizer tests (" + String.format("%.2f", (probes == 0) ? 0.0 : 100.0 * skippedProbeCount.get() / probes) + "%) on ubiquitous minimizers");
+		}
+		if(erroredConsumerCount.get() > 0) {
+			System.out.println("WARNING - " + erroredConsumerCount.get() + " classifying threads ended with errors, some reads are missing from the output");
+		}
 		endTime = System.nanoTime();
 		System.out.println("done in " + ((endTime - startTime) / 1000000000) + " seconds");
 	}
 	
+	//A database directory built by this version records k, w and the k-mer ordering in its manifest, even with text count files, which don't
+	private static void checkManifest() {
+		String parameters = null;
+		try {
+			parameters = MNBC_manifest.readParameters(new File(dbDirPath));
+		} catch(IOException e) {
+			System.out.println("ERROR: can't read the manifest of " + dbDirPath + " - " + e.getMessage() + ", exiting");
+			System.exit(1);
+		}
+		if(parameters == null) { //Built by an earlier version, only binary count files are checked
+			return;
+		}
+		
+		HashMap<String, String> parameter2Value = new HashMap<String, String>();
+		for(String parameter : parameters.split(" ")) {
+			String[] fields = parameter.split("=", 2);
+			parameter2Value.put(fields[0], (fields.length == 2) ? fields[1] : "");
+		}
+		String builtK = parameter2Value.get("k");
+		String builtW = parameter2Value.get("w");
+		String builtOrdering = parameter2Value.get("ordering");
+		if(builtK == null || builtW == null || builtOrdering == null) {
+			System.out.println("ERROR: the manifest of " + dbDirPath + " doesn't record k, w and the k-mer ordering (" + parameters + "), exiting");
+			System.exit(1);
+		}
+		if(!builtK.equals(String.valueOf(k))) {
+			System.out.println("ERROR: database " + dbDirPath + " was built with k=" + builtK + " but classification uses k=" + k + ", set '-k " + builtK + "', exiting");
+			System.exit(1);
+		}
+		if(!builtW.equals(String.valueOf(w))) {
+			System.out.println("ERROR: database " + dbDirPath + " was built with w=" + builtW + " but classification uses w=" + w + ", set '-w " + builtW + "', exiting");
+			System.exit(1);
+		}
+		if(!builtOrdering.equals(MNBC_minimizer.ORDERING_NAMES[ordering])) {
+			System.out.println("ERROR: database " + dbDirPath + " was built with " + builtOrdering + " k-mer ordering but classification uses " + MNBC_minimizer.ORDERING_NAMES[ordering] + ", set '-a " + builtOrdering + "', exiting");
+			System.exit(1);
+		}
+	}
+	
+	private static void readPackedDB() {
+		try {
+			MNBC_pack.PackedDatabase db = MNBC_pack.open(new File(dbDirPath));
+			if(db.k != k) {
+				System.out.println("ERROR: packed database " + dbDirPath + " was built with k=" + db.k + " but classification uses k=" + k + ", exiting");
+				System.exit(1);
+			}
+			if(db.w != w) {
+				System.out.println("ERROR: packed database " + dbDirPath + " was built with w=" + db.w + " but classification uses w=" + w + ", exiting");
+				System.exit(1);
+			}
+			if(db.ordering != ordering) {
+				System.out.println("ERROR: packed database " + dbDirPath + " was built with " + MNBC_minimizer.ORDERING_NAMES[db.ordering] + " k-mer ordering but classification uses " + MNBC_minimizer.ORDERING_NAMES[ordering] + ", exiting");
+				System.exit(1);
+			}
+			
+			genomeIds = db.genomeIds;
+			genomeMinimizers = db.genomeMinimizers;
+			logFres = new float[genomeIds.length];
+			for(int i = 0; i < genomeIds.length; i++) {
+				logFres[i] = (float) Math.log(1.0 / db.kmerTotalCounts[i]);
+			}
+		} catch(Exception e) {
+			System.out.println("ERROR: failed reading packed database " + dbDirPath);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
 	private static void readBaseOutputFile(File outputFile) {
 		finishedReadIds = new HashSet<String>();
 		
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(outputFile));
+			if(MNBC_gzip.isCompressed(outputFile) != !outputCompression.equals(MNBC_gzip.NONE)) {
+				System.out.println("ERROR - previous output file " + outputFile + " is " + (outputCompression.equals(MNBC_gzip.NONE) ? "" : "not ") + "compressed, unlike the requested output, exiting");
+				System.exit(1);
+			}
+			if(!outputCompression.equals(MNBC_gzip.NONE)) { //Appending only works after complete members
+				long cut = MNBC_gzip.truncateToCompleteMembers(outputFile);
+				if(cut > 0) {
+					System.out.println("Removed the last " + cut + " bytes of " + outputFile + " to append after its last complete compressed block");
+				}
+				if(outputFile.length() == 0) { //Nothing complete to resume from
+					finishedReadIds = null;
+					return;
+				}
+			}
+			
+			BufferedReader reader = new BufferedReader(new InputStreamReader(MNBC_gzip.open(outputFile, false), "UTF-8"));
 			String line = reader.readLine();
 			while((line = reader.readLine()) != null) {
 				String[] fields = line.split("\t");
@@ -208,15 +443,14 @@ public class MNBC_classify { //Previously called MNBC_classify2_onlydelta1000
 		}
 	}
 	
-	private static HashMap<String, String[]> readCompleteMeta() {
-		HashMap<String, String[]> completeGenomeId2TaxIds = new HashMap<String, String[]>();
-		
+	private static void readTaxonomy() { //Resolves the taxonomy of every database genome once, so reads are assigned by genome number only
+		HashMap<String, String[]> genomeId2TaxIds = new HashMap<String, String[]>();
 		try {
 			BufferedReader reader = new BufferedReader(new FileReader(metaFilePath));
 			String line = reader.readLine();
 			while((line = reader.readLine()) != null) {
 				String[] fields = line.split("\t");
-				completeGenomeId2TaxIds.put(fields[0], new String[] {fields[1], fields[2], fields[3], fields[4], fields[5], fields[6], fields[7], fields[8]});
+				genomeId2TaxIds.put(fields[0], new String[] {fields[1], fields[2], fields[3], fields[4], fields[5], fields[6], fields[7], fields[8]});
 			}
 			reader.close();
 		} catch(Exception e) {
@@ -225,453 +459,952 @@ public class MNBC_classify { //Previously called MNBC_classify2_onlydelta1000
 			System.exit(1);
 		}
 		
-		return completeGenomeId2TaxIds;
+		HashMap<String, Integer> taxonNumbers = new HashMap<String, Integer>();
+		ArrayList<String> taxonIds = new ArrayList<String>();
+		genomeTaxa = new int[genomeIds.length][];
+		genomeOutputFields = new byte[genomeIds.length][];
+		genomeListEntries = new byte[genomeIds.length][];
+		for(int i = 0; i < genomeIds.length; i++) {
+			String[] taxa = genomeId2TaxIds.get(genomeIds[i]);
+			if(taxa == null) {
+				System.out.println("ERROR: genome " + genomeIds[i] + " of the database is missing from taxonomy file " + metaFilePath + ", exiting");
+				System.exit(1);
+			}
+			
+			genomeTaxa[i] = new int[taxa.length];
+			StringBuilder fields = new StringBuilder();
+			for(int j = 0; j < taxa.length; j++) {
+				Integer taxonNumber = taxonNumbers.get(taxa[j]);
+				if(taxonNumber == null) {
+					taxonNumber = taxonIds.size();
+					taxonNumbers.put(taxa[j], taxonNumber);
+					taxonIds.add(taxa[j]);
+				}
+				genomeTaxa[i][j] = taxonNumber;
+				fields.append('\t').append(taxa[j]);
+			}
+			fields.append('\t').append(genomeIds[i]);
+			genomeOutputFields[i] = fields.toString().getBytes(StandardCharsets.UTF_8);
+			genomeListEntries[i] = (";" + genomeIds[i]).getBytes(StandardCharsets.UTF_8);
+		}
+		
+		Integer[] sortedTaxa = new Integer[taxonIds.size()]; //Numeric taxids compare as numbers by comparing their lengths first
+		for(int i = 0; i < sortedTaxa.length; i++) {
+			sortedTaxa[i] = i;
+		}
+		Arrays.sort(sortedTaxa, (a, b) -> {
+			String taxonA = taxonIds.get(a);
+			String taxonB = taxonIds.get(b);
+			return (taxonA.length() != taxonB.length()) ? Integer.compare(taxonA.length(), taxonB.length()) : taxonA.compareTo(taxonB);
+		});
+		taxonOrder = new int[sortedTaxa.length];
+		for(int i = 0; i < sortedTaxa.length; i++) {
+			taxonOrder[sortedTaxa[i]] = i;
+		}
+	}
+	
+	//Groups the genomes into the clades of cladeRank, each with the union of its genomes' minimizers, stored like the genome minimizers.
+	//A clade of one genome shares that genome's set
+	private static void buildClades() {
+		HashMap<Integer, IntArrayList> clade2Genomes = new HashMap<Integer, IntArrayList>();
+		ArrayList<IntArrayList> clades = new ArrayList<IntArrayList>();
+		for(int i = 0; i < genomeIds.length; i++) {
+			IntArrayList genomes = clade2Genomes.get(genomeTaxa[i][cladeRank]);
+			if(genomes == null) {
+				genomes = new IntArrayList();
+				clade2Genomes.put(genomeTaxa[i][cladeRank], genomes);
+				clades.add(genomes);
+			}
+			genomes.add(i);
+		}
+		
+		cladeGenomes = new int[clades.size()][];
+		cladeMinimizers = new MNBC_db.MinimizerSet[clades.size()];
+		cladeMaxLogFres = new float[clades.size()];
+		ExecutorService nested = Executors.newFixedThreadPool(numberOfThreads);
+		ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+		for(int c = 0; c < clades.size(); c++) {
+			int clade = c;
+			cladeGenomes[c] = clades.get(c).toArray();
+			cladeMaxLogFres[c] = Float.NEGATIVE_INFINITY;
+			for(int genome : cladeGenomes[c]) {
+				cladeMaxLogFres[c] = Math.max(cladeMaxLogFres[c], logFres[genome]);
+			}
+			tasks.add(nested.submit(() -> {
+				if(cladeGenomes[clade].length == 1) {
+					cladeMinimizers[clade] = genomeMinimizers[cladeGenomes[clade][0]];
+					return;
+				}
+				
+				MutableLongSet union = new LongHashSet();
+				for(int genome : cladeGenomes[clade]) {
+					LongIterator it = genomeMinimizers[genome].longIterator();
+					while(it.hasNext()) {
+						union.add(it.next());
+					}
+				}
+				MNBC_db.CountFile content = new MNBC_db.CountFile();
+				if(MNBC_minimizer.isLong(k)) {
+					content.longMinimizers = union.toArray();
+				} else {
+					content.minimizers = new int[union.size()];
+					LongIterator it = union.longIterator();
+					for(int j = 0; it.hasNext(); j++) {
+						content.minimizers[j] = (int) it.next();
+					}
+				}
+				cladeMinimizers[clade] = MNBC_db.createMinimizerSet(minimizerStorage, content);
+			}));
+		}
+		
+		try {
+			for(Future<?> task : tasks) {
+				task.get();
+			}
+		} catch(Exception e) {
+			System.out.println("ERROR: failed building the clades of the cascade");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		nested.shutdown();
 	}
 	
 	private static class Consumer implements Runnable {
 		private int id;
-		private String[] read;
+		private ReadBatch currentBatch;
+		private int currentRead;
+		private int[] sharedCounters; //Per-genome shared minimizer counts with the inverted index, reset after each read, or per-read counts with batch scoring, reset after each genome
+		private int[] candidateGenomes;
+		private MNBC_minimizer.Extractor minimizerExtractor;
+		private MutableIntIntMap speciesVotes = new IntIntHashMap(); //Number of voting genomes per species number, reused for every read
+		private MutableIntList votedSpecies = new IntArrayList(); //Species in the order of their first voting genome
+		private float[] scores = new float[64]; //Scores of the genomes passing the filtering threshold for the current read
+		private int[] scoredGenomes = new int[64];
+		private int numberOfScores;
+		private long[] sortKeys = new long[64];
+		private MutableIntList votingGenomes = new IntArrayList();
+		private int[] scoredReads = new int[64]; //Read of each score, only used with batch scoring
+		private float[] groupedScores = new float[64]; //Scores of a batch grouped by read
+		private int[] groupedScoredGenomes = new int[64];
+		private int[] readScoreStarts;
+		private int[] readMinimizerCounts;
+		private long[] readMinimizerArray = new long[64];
+		private long[] batchEntries = new long[1 << 16]; //Minimizer and read number of every distinct read minimizer of a batch, packed together
+		private int[] entryReads = new int[1 << 16]; //when minimizers are ints, else read numbers are kept here
+		private long[] distinctMinimizers = new long[0]; //Distinct minimizers of a batch, the reads containing distinctMinimizers[j] are postingReads[postingStarts[j], postingStarts[j + 1])
+		private int[] postingStarts;
+		private int[] postingReads;
+		private boolean[] containedMinimizers;
+		private double[] cladeBounds; //Greatest score any genome of each candidate clade can reach, for the cascade
+		private int[] candidateClades;
+		private float[] floorScores = new float[64];
+		private long cascadeReads;
+		private long widenedReads;
+		private long cascadeGenomes;
+		private int ubiquitousCount; //Ubiquitous minimizers of the current read, left out of readMinimizerArray
+		private int[] readUbiquitousCounts; //Per read, with batch scoring
+		private MutableLongSet batchUbiquitousMinimizers = new LongHashSet();
+		private long probes;
+		private long skippedProbes;
+		private long thresholdSkippedProbes;
+		private long deltaSkippedProbes;
+		private long rescoredGenomes;
+		private int[] abandonedGenomes = new int[64]; //Genomes abandoned more than delta below the best score, with the greatest score they could reach
+		private double[] abandonedBounds = new double[64];
 		
 		public Consumer(int anID) {
 			id = anID;
+			minimizerExtractor = new MNBC_minimizer.Extractor(k, w, ordering);
 		}
 
 		@Override
 		public void run() {
-			boolean done = false;			
-			
 			try {
-				if(readType) {
-					while(!done) {
-						read = readQueue.take();
-						if(read.length == 0) {
-							readQueue.put(read);						
-							resultQueue.put("Consumer " + id + " - finished");
-							done = true;
-						} else {
-							MutableIntSet readMinimizers = new IntHashSet();							
-							addKmersOfOneTestFrag(read[1], readMinimizers);
-							addKmersOfOneTestFrag(read[2], readMinimizers);
-							if(readMinimizers.isEmpty()) {
-								resultQueue.put(read[0] + "\tunclassified");
-								continue;
-							}
-							processReadMinimizers(readMinimizers);
-						}
+				while(true) {
+					ReadBatch batch = readQueue.take();
+					if(batch == END_OF_READS) {
+						readQueue.put(batch); //Leave the end signal for the other consumers
+						break;
 					}
-				} else {
-					while(!done) {
-						read = readQueue.take();
-						if(read.length == 0) {
-							readQueue.put(read);						
-							resultQueue.put("Consumer " + id + " - finished");
-							done = true;
-						} else {
-							MutableIntSet readMinimizers = new IntHashSet();							
-							addKmersOfOneTestFrag(read[1], readMinimizers);
+					
+					ResultBlock results = freeResultBlocks.take();
+					currentBatch = batch;
+					if(useBatchScoring) {
+						classifyBatch(batch, results);
+					} else {
+						for(int i = 0; i < batch.size; i++) {
+							currentRead = i;
+							MutableLongSet readMinimizers = new LongHashSet();
+							minimizerExtractor.extract(batch.data, batch.startStarts[i], batch.startEnds[i], readMinimizers);
+							if(readType) {
+								minimizerExtractor.extract(batch.endData, batch.endStarts[i], batch.endEnds[i], readMinimizers);
+							}
+							
+							results.append(batch.data, batch.idStarts[i], batch.startStarts[i]);
 							if(readMinimizers.isEmpty()) {
-								resultQueue.put(read[0] + "\tunclassified");
-								continue;
-							}							
-							processReadMinimizers(readMinimizers);
+								results.append("\tunclassified");
+							} else {
+								processReadMinimizers(readMinimizers, results);
+							}
+							results.append(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
 						}
 					}
+					currentBatch = null;
+					batch.clear();
+					freeBatches.put(batch);
+					resultQueue.put(results);
 				}
 			} catch(Exception e) {
-				System.out.println("Consumer " + id + " - error occurred on read " + read[0] + ", ending");
+				System.out.println("Consumer " + id + " - error occurred on read " + ((currentBatch == null) ? null : currentBatch.getReadId(currentRead)) + ", ending");
 				e.printStackTrace();
 				erroredConsumerCount.incrementAndGet();
+			} finally {
+				cascadeReadCount.addAndGet(cascadeReads);
+				widenedReadCount.addAndGet(widenedReads);
+				cascadeGenomeCount.addAndGet(cascadeGenomes);
+				probeCount.addAndGet(probes);
+				skippedProbeCount.addAndGet(skippedProbes);
+				thresholdSkippedProbeCount.addAndGet(thresholdSkippedProbes);
+				deltaSkippedProbeCount.addAndGet(deltaSkippedProbes);
+				rescoredGenomeCount.addAndGet(rescoredGenomes);
+				if(runningConsumerCount.decrementAndGet() == 0) { //The last consumer to end tells the writer that no more results follow
+					try {
+						resultQueue.put(END_OF_RESULTS);
+					} catch(InterruptedException e) {
+						e.printStackTrace();
+						System.exit(1);
+					}
+				}
 			}
 		}
 		
-		private void processReadMinimizers(MutableIntSet readMinimizers) throws Exception {
-			String outcome = read[0];
-			TreeMap<Float, MutableIntList> topScores = new TreeMap<>();
-			if(unclassifiedThreshold == 0.0F) {
-				for(int i = 0; i < genomeIds.length; i++) {							
-					float score = 0.0F;
-					int counter = 0; // Number of read minimizers shared with genome
-
-					IntIterator it = readMinimizers.intIterator();
-					while(it.hasNext()) {
-						if(genomeMinimizers[i].contains(it.next())) {
-							score += logFres[i];
-							counter++;
-						} else {
-							score += kmerPenalty;
-						}
-					}
-
-					if(counter > 0) {
-						if(topScores.containsKey(score)) {
-							topScores.get(score).add(i);
-						} else {
-							MutableIntList genomeIdsWithScore = new IntArrayList();
-							genomeIdsWithScore.add(i);
-							topScores.put(score, genomeIdsWithScore);									
-						}
-					}					
-				}				
-			} else {
-				int numberOfReadMinimizers = readMinimizers.size();
-				for(int i = 0; i < genomeIds.length; i++) {							
-					float score = 0.0F;
-					int counter = 0; // Number of read minimizers shared with genome
-
-					IntIterator it = readMinimizers.intIterator();
-					while(it.hasNext()) {
-						if(genomeMinimizers[i].contains(it.next())) {
-							score += logFres[i];
-							counter++;
-						} else {
-							score += kmerPenalty;
-						}
+		//Genome-major scoring of a whole batch: the batch's distinct minimizers, each with the reads containing it, are tested against
+		//one genome after the other, so each genome's minimizers are probed many times in a row instead of once per read.
+		//Counts the same shared minimizers as processReadMinimizers and scores them with the same addScore, so the output is the same as
+		//with the per-read strategies. Scores are collected for all reads of a pass before any of them is classified, so a batch is split
+		//into passes of at most MAX_BATCH_SCORES reads times genomes, keeping the scores held bounded even when every genome passes (-u 0)
+		private void classifyBatch(ReadBatch batch, ResultBlock results) {
+			int readsPerPass = Math.max(1, MAX_BATCH_SCORES / Math.max(1, genomeIds.length));
+			for(int from = 0; from < batch.size; from += readsPerPass) {
+				classifyReads(batch, from, Math.min(batch.size, from + readsPerPass), results);
+			}
+		}
+		
+		private void classifyReads(ReadBatch batch, int firstRead, int endRead, ResultBlock results) { //Reads [firstRead, endRead) of the batch
+			int numberOfReads = endRead - firstRead;
+			if(readMinimizerCounts == null || readMinimizerCounts.length < numberOfReads) {
+				readMinimizerCounts = new int[numberOfReads];
+				sharedCounters = new int[numberOfReads];
+				readScoreStarts = new int[numberOfReads + 1];
+				readUbiquitousCounts = new int[numberOfReads];
+			}
+			batchUbiquitousMinimizers.clear();
+			
+			int numberOfEntries = 0;
+			boolean isLong = MNBC_minimizer.isLong(k);
+			MutableLongSet readMinimizers = new LongHashSet();
+			for(int i = 0; i < numberOfReads; i++) {
+				int read = firstRead + i;
+				currentRead = read;
+				readMinimizers.clear();
+				minimizerExtractor.extract(batch.data, batch.startStarts[read], batch.startEnds[read], readMinimizers);
+				if(readType) {
+					minimizerExtractor.extract(batch.endData, batch.endStarts[read], batch.endEnds[read], readMinimizers);
+				}
+				readMinimizerCounts[i] = readMinimizers.size();
+				
+				if(batchEntries.length < numberOfEntries + readMinimizers.size()) {
+					batchEntries = Arrays.copyOf(batchEntries, Math.max(2 * batchEntries.length, numberOfEntries + readMinimizers.size()));
+					entryReads = Arrays.copyOf(entryReads, batchEntries.length);
+				}
+				readUbiquitousCounts[i] = 0;
+				LongIterator it = readMinimizers.longIterator();
+				while(it.hasNext()) {
+					long minimizer = it.next();
+					if(ubiquitousMinimizers != null && ubiquitousMinimizers.contains(minimizer)) {
+						readUbiquitousCounts[i]++;
+						batchUbiquitousMinimizers.add(minimizer);
+					} else if(isLong) {
+						batchEntries[numberOfEntries] = minimizer;
+						entryReads[numberOfEntries++] = i;
+					} else { //Packed so sorting groups the reads of each minimizer
+						batchEntries[numberOfEntries++] = (minimizer << 32) | i;
 					}
-					
-					if(counter >= (numberOfReadMinimizers * unclassifiedThreshold)) { //At lease unclassifiedThreshold ratio of read minimizers are in genome, genome is taken into account, make classification
-						if(topScores.containsKey(score)) {
-							topScores.get(score).add(i);
-						} else {
-							MutableIntList genomeIdsWithScore = new IntArrayList();
-							genomeIdsWithScore.add(i);
-							topScores.put(score, genomeIdsWithScore);									
-						}
-					}					
-				}				
+				}
 			}
-			if(topScores.isEmpty()) {
-				outcome += "\tunclassified";
-				resultQueue.put(outcome);
-				return;
+			currentRead = -1;
+			
+			if(distinctMinimizers.length < numberOfEntries) {
+				distinctMinimizers = new long[numberOfEntries];
+				postingStarts = new int[numberOfEntries + 1];
+				postingReads = new int[numberOfEntries];
+				containedMinimizers = new boolean[numberOfEntries];
 			}
+			int numberOfDistinct = isLong ? groupLongEntries(numberOfEntries) : groupPackedEntries(numberOfEntries);
 			
-			MutableIntList votingGenomes = processTopScores(topScores);																		
-			if(votingGenomes.size() == 1) {
-				//System.out.println("Read " + read[0] + " has 1 voting genome");
-				String predictedGenomeId = genomeIds[votingGenomes.getFirst()];
-				String[] predictedTaxonIds = completeGenomeId2TaxIds.get(predictedGenomeId);				
-				for(String predictedId : predictedTaxonIds) {
-					outcome += "\t" + predictedId;
-				}
-				outcome += "\t" + predictedGenomeId;
-			} else {
-				//System.out.println("Read " + read[0] + " has " + votingGenomes.size() + " voting genomes");
-				HashMap<String, ArrayList<String>> speciesId2GenomeIds = fillSpeciesId2GenomeIds(votingGenomes);								
-				String dominantSpecies = null; //Multiple species may have the same greatest number of genomes
-				int dominantCount = 0;
-				for(Entry<String, ArrayList<String>> species : speciesId2GenomeIds.entrySet()) {
-					int count = species.getValue().size();
-					if(count >= dominantCount) {
-						dominantSpecies = species.getKey();
-						dominantCount = count;
+			numberOfScores = 0; //Scores of all reads, in genome order, with their read numbers in scoredReads
+			for(int i = 0; i < genomeIds.length; i++) {
+				genomeMinimizers[i].findContained(distinctMinimizers, numberOfDistinct, containedMinimizers);
+				probes += numberOfDistinct;
+				skippedProbes += batchUbiquitousMinimizers.size();
+				for(int j = 0; j < numberOfDistinct; j++) {
+					if(containedMinimizers[j]) {
+						for(int p = postingStarts[j]; p < postingStarts[j + 1]; p++) {
+							sharedCounters[postingReads[p]]++;
+						}
 					}
 				}
-				//System.out.println("Dominant species is " + dominantSpecies + " with " + dominantCount + " genomes");
 				
-				ArrayList<String> dominantGenomes = speciesId2GenomeIds.get(dominantSpecies);
-				String firstDominantGenome = dominantGenomes.get(0);
-				String[] taxonIds = completeGenomeId2TaxIds.get(firstDominantGenome);
-				for(String taxonId : taxonIds) {
-					outcome += "\t" + taxonId;
+				for(int r = 0; r < numberOfReads; r++) {
+					int scoresBefore = numberOfScores;
+					if(readMinimizerCounts[r] > 0) {
+						addScore(i, sharedCounters[r] + readUbiquitousCounts[r], readMinimizerCounts[r]);
+					}
+					if(numberOfScores > scoresBefore) {
+						if(scoredReads.length < scores.length) {
+							scoredReads = Arrays.copyOf(scoredReads, scores.length);
+						}
+						scoredReads[scoresBefore] = r;
+					}
+					sharedCounters[r] = 0;
+				}
+			}
+			
+			//Group the scores by read, then classify every read from its own range of scores
+			if(groupedScores.length < numberOfScores) {
+				groupedScores = new float[scores.length];
+				groupedScoredGenomes = new int[scores.length];
+			}
+			Arrays.fill(readScoreStarts, 0, numberOfReads + 1, 0);
+			for(int j = 0; j < numberOfScores; j++) {
+				readScoreStarts[scoredReads[j] + 1]++;
+			}
+			for(int r = 0; r < numberOfReads; r++) {
+				readScoreStarts[r + 1] += readScoreStarts[r];
+			}
+			for(int j = 0; j < numberOfScores; j++) {
+				int position = readScoreStarts[scoredReads[j]]++;
+				groupedScores[position] = scores[j];
+				groupedScoredGenomes[position] = scoredGenomes[j];
+			}
+			
+			int from = 0; //readScoreStarts[r] now holds the end of read r's scores
+			for(int r = 0; r < numberOfReads; r++) {
+				currentRead = firstRead + r;
+				results.append(batch.data, batch.idStarts[firstRead + r], batch.startStarts[firstRead + r]);
+				if(readMinimizerCounts[r] == 0) {
+					results.append("\tunclassified");
+				} else {
+					appendClassification(groupedScores, groupedScoredGenomes, from, readScoreStarts[r], results);
 				}
-				outcome += "\t" + firstDominantGenome;
-				for(int i = 1; i < dominantGenomes.size(); i++) {
-					outcome += ";" + dominantGenomes.get(i);
+				results.append(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+				from = readScoreStarts[r];
+			}
+		}
+		
+		private int groupPackedEntries(int numberOfEntries) { //Returns the number of distinct minimizers
+			Arrays.sort(batchEntries, 0, numberOfEntries);
+			int numberOfDistinct = 0;
+			for(int j = 0; j < numberOfEntries; j++) {
+				long minimizer = batchEntries[j] >>> 32;
+				if(numberOfDistinct == 0 || distinctMinimizers[numberOfDistinct - 1] != minimizer) {
+					distinctMinimizers[numberOfDistinct] = minimizer;
+					postingStarts[numberOfDistinct] = j;
+					numberOfDistinct++;
 				}
+				postingReads[j] = (int) batchEntries[j];
 			}
-			resultQueue.put(outcome);
+			postingStarts[numberOfDistinct] = numberOfEntries;
+			return numberOfDistinct;
 		}
 		
-		private MutableIntList processTopScores(TreeMap<Float, MutableIntList> topScores) {
-			MutableIntList votingGenomes = new IntArrayList();
-			Entry<Float, MutableIntList> greatestEntry = topScores.pollLastEntry();
-			votingGenomes.addAll(greatestEntry.getValue());
-			
-			float prevScore = greatestEntry.getKey();
-			while(!topScores.isEmpty()) {
-				Entry<Float, MutableIntList> curEntry = topScores.pollLastEntry();
-				float curScore = curEntry.getKey();
-				if(prevScore - curScore > delta) {
-					break;
-				} else {
-					votingGenomes.addAll(curEntry.getValue());
-					prevScore = curScore;
+		//64-bit minimizers leave no room for the read number, so the distinct minimizers are sorted on their own,
+		//then the reads are bucketed under their minimizers by counting sort
+		private int groupLongEntries(int numberOfEntries) {
+			System.arraycopy(batchEntries, 0, distinctMinimizers, 0, numberOfEntries);
+			Arrays.sort(distinctMinimizers, 0, numberOfEntries);
+			int numberOfDistinct = 0;
+			for(int j = 0; j < numberOfEntries; j++) {
+				if(numberOfDistinct == 0 || distinctMinimizers[numberOfDistinct - 1] != distinctMinimizers[j]) {
+					distinctMinimizers[numberOfDistinct++] = distinctMinimizers[j];
 				}
 			}
 			
-			return votingGenomes;
+			Arrays.fill(postingStarts, 0, numberOfDistinct + 1, 0);
+			for(int j = 0; j < numberOfEntries; j++) { //Each entry's minimizer is replaced by its slot
+				int slot = Arrays.binarySearch(distinctMinimizers, 0, numberOfDistinct, batchEntries[j]);
+				batchEntries[j] = slot;
+				postingStarts[slot + 1]++;
+			}
+			for(int j = 0; j < numberOfDistinct; j++) {
+				postingStarts[j + 1] += postingStarts[j];
+			}
+			for(int j = 0; j < numberOfEntries; j++) { //Moves every start to the next slot's start...
+				postingReads[postingStarts[(int) batchEntries[j]]++] = entryReads[j];
+			}
+			for(int j = numberOfDistinct; j > 0; j--) { //...then back into place
+				postingStarts[j] = postingStarts[j - 1];
+			}
+			postingStarts[0] = 0;
+			return numberOfDistinct;
 		}
 		
-		private HashMap<String, ArrayList<String>> fillSpeciesId2GenomeIds(MutableIntList votingGenomes) {
-			HashMap<String, ArrayList<String>> speciesId2GenomeIds = new HashMap<>();
-			MutableIntIterator it = votingGenomes.intIterator();
-			while(it.hasNext()) {
-				String genomeId = genomeIds[it.next()];
-				String speciesId = completeGenomeId2TaxIds.get(genomeId)[0];
-				if(speciesId2GenomeIds.containsKey(speciesId)) {
-					speciesId2GenomeIds.get(speciesId).add(genomeId);
+		private void processReadMinimizers(MutableLongSet readMinimizers, ResultBlock outcome) { //Appends the output fields following the read ID
+			numberOfScores = 0;
+			int numberOfReadMinimizers = readMinimizers.size();
+			if(minimizerIndex == null) {
+				if(readMinimizerArray.length < numberOfReadMinimizers) {
+					readMinimizerArray = new long[Math.max(2 * readMinimizerArray.length, numberOfReadMinimizers)];
+				}
+				int n = 0; //Copied once so every genome is probed from a plain array instead of a hash set iterator
+				ubiquitousCount = 0;
+				LongIterator it = readMinimizers.longIterator();
+				while(it.hasNext()) {
+					long minimizer = it.next();
+					if(ubiquitousMinimizers != null && ubiquitousMinimizers.contains(minimizer)) {
+						ubiquitousCount++;
+					} else {
+						readMinimizerArray[n++] = minimizer;
+					}
+				}
+				
+				if(cladeMinimizers != null) {
+					scoreClades(numberOfReadMinimizers, n);
 				} else {
-					ArrayList<String> genomeIdsWithSpeciesId = new ArrayList<String>();
-					genomeIdsWithSpeciesId.add(genomeId);
-					speciesId2GenomeIds.put(speciesId, genomeIdsWithSpeciesId);
-				}									
+					scoreGenomes(numberOfReadMinimizers, n);
+				}
+			} else {
+				if(sharedCounters == null) {
+					sharedCounters = new int[genomeIds.length];
+					candidateGenomes = new int[genomeIds.length];
+				}
+				
+				int numberOfCandidates = minimizerIndex.countSharedMinimizers(readMinimizers, sharedCounters, candidateGenomes);
+				for(int j = 0; j < numberOfCandidates; j++) {
+					int i = candidateGenomes[j];
+					addScore(i, sharedCounters[i], numberOfReadMinimizers);
+					sharedCounters[i] = 0;
+				}
 			}
-			
-			return speciesId2GenomeIds;
+			appendClassification(scores, scoredGenomes, 0, numberOfScores, outcome);
 		}
 		
-		private void addKmersOfOneTestFrag(String testFrag, MutableIntSet kmers) {
-			int length = testFrag.length();
-			if(length < k) {
-				return;
-			}
-			
-			//Get minus sequence
-			MutableIntSet indicesOfInvalidKmers = new IntHashSet();
-			StringBuilder minusSequence = new StringBuilder();			
-			for(int i = length - 1; i >= 0; i--) {
-				char base = testFrag.charAt(i);
-				switch(base) {
-					case 'A':
-						minusSequence.append('T');
-						break;
-					case 'C':
-						minusSequence.append('G');
-						break;
-					case 'G':
-						minusSequence.append('C');
-						break;
-					case 'T':
-						minusSequence.append('A');
-						break;
-					default:
-						minusSequence.append(base);
-						for(int j = i - k + 1; j <= i; j++) {
-							indicesOfInvalidKmers.add(j);
-						}
+		//Number of read minimizers in the set: the first numberOfProbedMinimizers of readMinimizerArray found in it, plus the ubiquitous ones
+		private int countSharedMinimizers(MNBC_db.MinimizerSet minimizers, int numberOfProbedMinimizers) {
+			int counter = ubiquitousCount;
+			for(int j = 0; j < numberOfProbedMinimizers; j++) {
+				if(minimizers.contains(readMinimizerArray[j])) {
+					counter++;
 				}
-			}			
-			
-			HashSet<String> minimizers = new HashSet<String>();
-			int startIndexOfLastKmer = length - k;
-			String[] canonicalKmers = new String[startIndexOfLastKmer + 1]; //first get the canonical kmer at each position
-			
-			if(indicesOfInvalidKmers.isEmpty()) { //all kmers are valid
-				for(int i = 0; i <= startIndexOfLastKmer; i++) {
-					String plusKmer = testFrag.substring(i, i + k);
-					String minusKmer = minusSequence.substring(startIndexOfLastKmer - i, length - i);
-					canonicalKmers[i] = (plusKmer.compareTo(minusKmer) < 0) ? plusKmer : minusKmer;
+			}
+			probes += numberOfProbedMinimizers;
+			skippedProbes += ubiquitousCount;
+			return counter;
+		}
+		
+		//Scores every genome, abandoning one as soon as its misses leave too few read minimizers to take its counter to the filtering threshold,
+		//which addScore would drop anyway, or its score to within delta of the best score so far. A genome more than delta below the best can
+		//still vote when other genomes bridge the gap, so once all genomes are scored, every abandoned genome is checked against the lowest
+		//score of the voting set, and scored after all unless no score it could reach joins it. The voting set is exactly that of scoring all
+		private void scoreGenomes(int numberOfReadMinimizers, int numberOfProbedMinimizers) {
+			int minimumCounter = getMinimumCounter(numberOfReadMinimizers);
+			int maximumCounter = numberOfProbedMinimizers + ubiquitousCount;
+			float bestScore = Float.NEGATIVE_INFINITY;
+			int numberOfAbandoned = 0;
+			for(int i = 0; i < genomeIds.length; i++) {
+				int neededCounter = minimumCounter;
+				if(bestScore != Float.NEGATIVE_INFINITY && logFres[i] > kmerPenalty) { //Scores grow with the counter
+					double counterWithinDelta = Math.ceil((bestScore - delta - numberOfReadMinimizers * (double) kmerPenalty) / (logFres[i] - (double) kmerPenalty));
+					neededCounter = (int) Math.max(neededCounter, Math.min(counterWithinDelta, maximumCounter + 1));
 				}
 				
-				if(length < (2 * k - 1)) { //read length not reaching one window's length
-					//left end minimizers, dynamic programming					
-					String minimizer = canonicalKmers[0];
-					minimizers.add(minimizer);
-					for(int v = 1; v < canonicalKmers.length; v++) { //here v is not the u in (u,k) in the paper, it is the index of the last/rightmost kmer in each (u,k) window (i.e. u - 1)
-						minimizer = (canonicalKmers[v].compareTo(minimizer) < 0) ? canonicalKmers[v] : minimizer;
-						minimizers.add(minimizer);					
-					}
-
-					for(String aMinimizer : minimizers) {
-						int index = 0;
-						
-						int lastCharIndex = k - 1;
-						for(int i = lastCharIndex; i >= 0; i--) {
-							switch(aMinimizer.charAt(i)) {
-								case 'C':
-									index += (int) Math.pow(4, lastCharIndex - i);
-									break;
-								case 'G':
-									index += 2 * ((int) Math.pow(4, lastCharIndex - i));
-									break;
-								case 'T':
-									index += 3 * ((int) Math.pow(4, lastCharIndex - i));
-									break;
-							}
+				int allowedMisses = maximumCounter - neededCounter;
+				int misses = 0;
+				int j = 0;
+				if(allowedMisses >= 0) {
+					MNBC_db.MinimizerSet minimizers = genomeMinimizers[i];
+					for(; j < numberOfProbedMinimizers; j++) {
+						if(!minimizers.contains(readMinimizerArray[j]) && ++misses > allowedMisses) {
+							j++;
+							break;
 						}
-						
-						kmers.add(index);
 					}
-					return;
 				}
+				probes += j;
+				skippedProbes += ubiquitousCount;
 				
-				//interior minimizers - first window
-				String minimizer = canonicalKmers[0];
-				for(int j = 1; j < k; j++) {
-					minimizer = (canonicalKmers[j].compareTo(minimizer) < 0) ? canonicalKmers[j] : minimizer;
+				if(allowedMisses >= 0 && misses <= allowedMisses) {
+					int scoresBefore = numberOfScores;
+					addScore(i, maximumCounter - misses, numberOfReadMinimizers);
+					if(numberOfScores > scoresBefore && scores[scoresBefore] > bestScore) {
+						bestScore = scores[scoresBefore];
+					}
+				} else if(neededCounter == minimumCounter) {
+					thresholdSkippedProbes += numberOfProbedMinimizers - j;
+				} else {
+					deltaSkippedProbes += numberOfProbedMinimizers - j;
+					int reachableCounter = Math.min(neededCounter - 1, maximumCounter);
+					if(numberOfAbandoned == abandonedGenomes.length) {
+						abandonedGenomes = Arrays.copyOf(abandonedGenomes, 2 * numberOfAbandoned);
+						abandonedBounds = Arrays.copyOf(abandonedBounds, 2 * numberOfAbandoned);
+					}
+					abandonedGenomes[numberOfAbandoned] = i;
+					abandonedBounds[numberOfAbandoned++] = reachableCounter * (double) logFres[i] + (numberOfReadMinimizers - reachableCounter) * (double) kmerPenalty;
 				}
-				minimizers.add(minimizer);
-
-				//interior minimizers - later windows incrementally
-				int indexOfLastWindowStartPosition = startIndexOfLastKmer - k + 1;					
-				for(int i = 1; i <= indexOfLastWindowStartPosition; i++) {
-					if(minimizer.equals(canonicalKmers[i - 1])) {
-						minimizer = canonicalKmers[i];
-						int indexOfFirstKmerAfterWindow = i + k;
-						for(int j = i + 1; j < indexOfFirstKmerAfterWindow; j++) {
-							minimizer = (canonicalKmers[j].compareTo(minimizer) < 0) ? canonicalKmers[j] : minimizer;
-						}
-					} else {
-						int indexOfLastKmerInWindow = i + k - 1;
-						minimizer = (canonicalKmers[indexOfLastKmerInWindow].compareTo(minimizer) < 0) ? canonicalKmers[indexOfLastKmerInWindow] : minimizer;
+			}
+			
+			boolean rescored = numberOfAbandoned > 0;
+			while(rescored) { //Scores added here can lower the voting set further
+				rescored = false;
+				float floor = getVotingFloor();
+				for(int a = 0; a < numberOfAbandoned; ) {
+					if(isBelowVotingSet(abandonedBounds[a], floor, numberOfReadMinimizers)) {
+						a++;
+						continue;
 					}
 					
-					minimizers.add(minimizer);					
-				}
-
-				//left end minimizers, dynamic programming
-				minimizer = canonicalKmers[0];
-				minimizers.add(minimizer);
-				for(int v = 1; v <= (k - 2); v++) { //here v is not the u in (u,k) in the paper, it is the index of the last/rightmost kmer in each (u,k) window (i.e. u - 1)
-					minimizer = (canonicalKmers[v].compareTo(minimizer) < 0) ? canonicalKmers[v] : minimizer;
-					minimizers.add(minimizer);					
+					int i = abandonedGenomes[a];
+					addScore(i, countSharedMinimizers(genomeMinimizers[i], numberOfProbedMinimizers), numberOfReadMinimizers);
+					rescoredGenomes++;
+					numberOfAbandoned--;
+					abandonedGenomes[a] = abandonedGenomes[numberOfAbandoned];
+					abandonedBounds[a] = abandonedBounds[numberOfAbandoned];
+					rescored = true;
 				}
-
-				//right end minimizers, dynamic programming
-				minimizer = canonicalKmers[startIndexOfLastKmer];
-				minimizers.add(minimizer);
-				for(int v = startIndexOfLastKmer - 1; v >= (startIndexOfLastKmer - k + 2); v--) { //here v is not the u in (u,k) in the paper, it is the index of the first/leftmost kmer in each (u,k) window
-					minimizer = (canonicalKmers[v].compareTo(minimizer) < 0) ? canonicalKmers[v] : minimizer;
-					minimizers.add(minimizer);					
-				}
-			} else { //there are invalid kmers
-				for(int i = 0; i <= startIndexOfLastKmer; i++) {
-					if(!indicesOfInvalidKmers.contains(i)) {
-						String plusKmer = testFrag.substring(i, i + k);
-						String minusKmer = minusSequence.substring(startIndexOfLastKmer - i, length - i);
-						canonicalKmers[i] = (plusKmer.compareTo(minusKmer) < 0) ? plusKmer : minusKmer;
-					}
+			}
+		}
+		
+		private int getMinimumCounter(int numberOfReadMinimizers) { //Least counter addScore keeps
+			return (unclassifiedThreshold == 0.0F) ? 1 : (int) Math.ceil(numberOfReadMinimizers * unclassifiedThreshold);
+		}
+		
+		//Coarse-to-fine scoring: a genome shares at most as many read minimizers as its clade, so the clade's count bounds the score of all its
+		//genomes. Clades are scored genome by genome from the greatest bound down, until the next bound falls more than delta below the lowest
+		//score of the voting set so far: no remaining genome can then join it, nor bridge a gap to lower scores. The scores added are
+		//those the flat loop would add for the same genomes, so the voting set and the output are exactly the same
+		private void scoreClades(int numberOfReadMinimizers, int numberOfProbedMinimizers) {
+			if(cladeBounds == null) {
+				cladeBounds = new double[cladeGenomes.length];
+				candidateClades = new int[cladeGenomes.length];
+			}
+			int minimumCounter = getMinimumCounter(numberOfReadMinimizers);
+			int numberOfCandidates = 0;
+			for(int c = 0; c < cladeGenomes.length; c++) {
+				int counter = countSharedMinimizers(cladeMinimizers[c], numberOfProbedMinimizers);
+				if(counter < minimumCounter) { //No genome of the clade passes the filtering threshold
+					continue;
 				}
 				
-				if(length < (2 * k - 1)) { //read length not reaching one window's length
-					//left end minimizers, dynamic programming
-					String minimizer = "Z";
-					for(int v = 0; v < canonicalKmers.length; v++) { //here v is not the u in (u,k) in the paper, it is the index of the last/rightmost kmer in each (u,k) window (i.e. u - 1)
-						if(canonicalKmers[v] != null) {
-							minimizer = (canonicalKmers[v].compareTo(minimizer) < 0) ? canonicalKmers[v] : minimizer;
-							minimizers.add(minimizer);
-						}
+				//Scores are linear in the counter, which lies between minimumCounter and the clade's counter, and grow with logFre
+				double atMost = counter * (double) cladeMaxLogFres[c] + (numberOfReadMinimizers - counter) * (double) kmerPenalty;
+				double atLeast = minimumCounter * (double) cladeMaxLogFres[c] + (numberOfReadMinimizers - minimumCounter) * (double) kmerPenalty;
+				cladeBounds[numberOfCandidates] = Math.max(atMost, atLeast);
+				if(numberOfCandidates == sortKeys.length) {
+					sortKeys = Arrays.copyOf(sortKeys, 2 * numberOfCandidates);
+				}
+				int bits = Float.floatToIntBits((float) cladeBounds[numberOfCandidates]);
+				int sortableBits = bits ^ ((bits >> 31) & 0x7FFFFFFF);
+				sortKeys[numberOfCandidates] = ((long) ~sortableBits << 32) | numberOfCandidates; //Descending bound, then clade order
+				candidateClades[numberOfCandidates++] = c;
+			}
+			Arrays.sort(sortKeys, 0, numberOfCandidates);
+			
+			cascadeReads++;
+			for(int j = 0; j < numberOfCandidates; j++) {
+				int candidate = (int) sortKeys[j];
+				if(j > 0) {
+					if(numberOfScores > 0 && isBelowVotingSet(cladeBounds[candidate], getVotingFloor(), numberOfReadMinimizers)) {
+						break;
 					}
-					
-					for(String aMinimizer : minimizers) {
-						int index = 0;
-						
-						int lastCharIndex = k - 1;
-						for(int i = lastCharIndex; i >= 0; i--) {
-							switch(aMinimizer.charAt(i)) {
-								case 'C':
-									index += (int) Math.pow(4, lastCharIndex - i);
-									break;
-								case 'G':
-									index += 2 * ((int) Math.pow(4, lastCharIndex - i));
-									break;
-								case 'T':
-									index += 3 * ((int) Math.pow(4, lastCharIndex - i));
-									break;
-							}
-						}
-						
-						kmers.add(index);
+					if(j == 1) {
+						widenedReads++;
 					}
-					return;			
 				}
 				
-				//interior minimizers - first window
-				String minimizer = "Z";
-				for(int j = 0; j < k; j++) {
-					if(canonicalKmers[j] != null) {
-						minimizer = (canonicalKmers[j].compareTo(minimizer) < 0) ? canonicalKmers[j] : minimizer;
+				for(int i : cladeGenomes[candidateClades[candidate]]) {
+					addScore(i, countSharedMinimizers(genomeMinimizers[i], numberOfProbedMinimizers), numberOfReadMinimizers);
+				}
+				cascadeGenomes += cladeGenomes[candidateClades[candidate]].length;
+			}
+		}
+		
+		//Whether a score of at most bound is more than delta below floor, the lowest score of the voting set, so it can't join the set.
+		//Bounds are sorted as floats, and addScore's float score rounds three times, which a margin of float epsilons proportional to the
+		//number of read minimizers covers with room to spare
+		private boolean isBelowVotingSet(double bound, float floor, int numberOfReadMinimizers) {
+			double margin = 2 * Math.ulp(delta) + (numberOfReadMinimizers + 2) * (double) Math.ulp(1.0F) * (Math.abs(bound) + Math.abs(floor));
+			return floor - bound > delta + margin;
+		}
+		
+		private float getVotingFloor() { //Lowest score of the voting set selected from the current scores, at least one
+			if(floorScores.length < numberOfScores) {
+				floorScores = new float[scores.length];
+			}
+			System.arraycopy(scores, 0, floorScores, 0, numberOfScores);
+			Arrays.sort(floorScores, 0, numberOfScores);
+			float floor = floorScores[numberOfScores - 1];
+			for(int j = numberOfScores - 2; j >= 0; j--) {
+				if(Float.compare(floorScores[j], floor) != 0) {
+					if(floor - floorScores[j] > delta) {
+						break;
 					}
+					floor = floorScores[j];
 				}
-				if(minimizer.length() == k) {
-					minimizers.add(minimizer);
+			}
+			return floor;
+		}
+		
+		//Appends the output fields following the read ID, given the read's scores in someScores[from, to) (reordered in place)
+		private void appendClassification(float[] someScores, int[] someScoredGenomes, int from, int to, ResultBlock outcome) {
+			if(from == to) {
+				outcome.append("\tunclassified");
+				return;
+			}
+			
+			MutableIntList votingGenomes = selectVotingGenomes(someScores, someScoredGenomes, from, to);
+			int dominantSpecies = countSpeciesVotes(votingGenomes);
+			boolean first = true;
+			for(int j = 0; j < votingGenomes.size(); j++) { //The first genome of the dominant species gives the taxonomy, all of them are listed
+				int genome = votingGenomes.get(j);
+				if(genomeTaxa[genome][0] == dominantSpecies) {
+					byte[] fields = first ? genomeOutputFields[genome] : genomeListEntries[genome];
+					outcome.append(fields, 0, fields.length);
+					first = false;
 				}
-
-				//interior minimizers - later windows incrementally
-				int indexOfLastWindowStartPosition = startIndexOfLastKmer - k + 1;					
-				for(int i = 1; i <= indexOfLastWindowStartPosition; i++) {
-					if(minimizer.equals(canonicalKmers[i - 1])) {
-						minimizer = "Z";
-						int indexOfFirstKmerAfterWindow = i + k;
-						for(int j = i; j < indexOfFirstKmerAfterWindow; j++) {
-							if(canonicalKmers[j] != null) {
-								minimizer = (canonicalKmers[j].compareTo(minimizer) < 0) ? canonicalKmers[j] : minimizer;
-							}
+			}
+		}
+		
+		//Returns the species with the most voting genomes, the one with the lowest taxid among equally voted species
+		private int countSpeciesVotes(MutableIntList votingGenomes) {
+			speciesVotes.clear();
+			votedSpecies.clear();
+			for(int j = 0; j < votingGenomes.size(); j++) {
+				int species = genomeTaxa[votingGenomes.get(j)][0];
+				if(speciesVotes.addToValue(species, 1) == 1) {
+					votedSpecies.add(species);
+				}
+			}
+			
+			int dominantSpecies = -1;
+			int dominantCount = 0;
+			for(int j = 0; j < votedSpecies.size(); j++) {
+				int species = votedSpecies.get(j);
+				int count = speciesVotes.get(species);
+				if(count > dominantCount || (count == dominantCount && taxonOrder[species] < taxonOrder[dominantSpecies])) {
+					dominantSpecies = species;
+					dominantCount = count;
+				}
+			}
+			return dominantSpecies;
+		}
+		
+		private void addScore(int i, int counter, int numberOfReadMinimizers) {
+			if(unclassifiedThreshold == 0.0F) {
+				if(counter == 0) {
+					return;
+				}
+			} else if(counter < (numberOfReadMinimizers * unclassifiedThreshold)) { //At lease unclassifiedThreshold ratio of read minimizers are in genome, genome is taken into account, make classification
+				return;
+			}
+			
+			if(numberOfScores == scores.length) {
+				scores = Arrays.copyOf(scores, 2 * numberOfScores);
+				scoredGenomes = Arrays.copyOf(scoredGenomes, 2 * numberOfScores);
+			}
+			scores[numberOfScores] = counter * logFres[i] + (numberOfReadMinimizers - counter) * kmerPenalty;
+			scoredGenomes[numberOfScores] = i;
+			numberOfScores++;
+		}
+		
+		//Walks the scored genomes from the greatest score down, in ascending genome order within equal scores, and keeps them until
+		//the first drop between adjacent distinct scores exceeding delta. Only genomes scoring close enough to the lowest kept score
+		//to possibly be next are selected and sorted, a pass at a time, instead of sorting every scored genome.
+		private MutableIntList selectVotingGenomes(float[] scores, int[] scoredGenomes, int from, int to) {
+			votingGenomes.clear();
+			int maxPosition = from;
+			for(int j = from + 1; j < to; j++) {
+				if(Float.compare(scores[j], scores[maxPosition]) > 0) {
+					maxPosition = j;
+				}
+			}
+			
+			float prevScore = scores[maxPosition];
+			int remaining = to; //Not yet selected scores stay in [from, remaining)
+			while(remaining > from) {
+				//A float difference prevScore - curScore rounds to at most delta only if the exact difference is below delta + ulp(delta)
+				double bound = Math.min(prevScore, (double) prevScore - delta - 2 * Math.ulp(delta));
+				int numberOfKeys = 0;
+				for(int j = from; j < remaining; ) {
+					if(scores[j] >= bound || Float.isNaN(scores[j])) {
+						if(numberOfKeys == sortKeys.length) {
+							sortKeys = Arrays.copyOf(sortKeys, 2 * numberOfKeys);
 						}
+						int bits = Float.floatToIntBits(scores[j]);
+						int sortableBits = bits ^ ((bits >> 31) & 0x7FFFFFFF); //Same order as Float.compare
+						sortKeys[numberOfKeys++] = ((long) ~sortableBits << 32) | scoredGenomes[j]; //Descending score, then ascending genome
+						remaining--;
+						scores[j] = scores[remaining];
+						scoredGenomes[j] = scoredGenomes[remaining];
 					} else {
-						int indexOfLastKmerInWindow = i + k - 1;
-						if(canonicalKmers[indexOfLastKmerInWindow] != null) {
-							minimizer = (canonicalKmers[indexOfLastKmerInWindow].compareTo(minimizer) < 0) ? canonicalKmers[indexOfLastKmerInWindow] : minimizer;
-						}
-					}
-					
-					if(minimizer.length() == k) {
-						minimizers.add(minimizer);
+						j++;
 					}
 				}
-
-				//left end minimizers, dynamic programming
-				minimizer = "Z";
-				for(int v = 0; v <= (k - 2); v++) { //here v is not the u in (u,k) in the paper, it is the index of the last/rightmost kmer in each (u,k) window (i.e. u - 1)
-					if(canonicalKmers[v] != null) {
-						minimizer = (canonicalKmers[v].compareTo(minimizer) < 0) ? canonicalKmers[v] : minimizer;
-						minimizers.add(minimizer);
-					}
+				if(numberOfKeys == 0) {
+					break;
 				}
-
-				//right end minimizers, dynamic programming
-				minimizer = "Z";
-				for(int v = startIndexOfLastKmer; v >= (startIndexOfLastKmer - k + 2); v--) { //here v is not the u in (u,k) in the paper, it is the index of the first/leftmost kmer in each (u,k) window
-					if(canonicalKmers[v] != null) {
-						minimizer = (canonicalKmers[v].compareTo(minimizer) < 0) ? canonicalKmers[v] : minimizer;
-						minimizers.add(minimizer);
+				
+				Arrays.sort(sortKeys, 0, numberOfKeys);
+				for(int j = 0; j < numberOfKeys; j++) {
+					int sortableBits = ~(int) (sortKeys[j] >>> 32);
+					float curScore = Float.intBitsToFloat(sortableBits ^ ((sortableBits >> 31) & 0x7FFFFFFF));
+					if(Float.compare(curScore, prevScore) != 0) {
+						if(prevScore - curScore > delta) {
+							return votingGenomes;
+						}
+						prevScore = curScore;
 					}
+					votingGenomes.add((int) sortKeys[j]);
 				}
 			}
 			
-			for(String aMinimizer : minimizers) {
-				int index = 0;
-				
-				int lastCharIndex = k - 1;
-				for(int i = lastCharIndex; i >= 0; i--) {
-					switch(aMinimizer.charAt(i)) {
-						case 'C':
-							index += (int) Math.pow(4, lastCharIndex - i);
-							break;
-						case 'G':
-							index += 2 * ((int) Math.pow(4, lastCharIndex - i));
-							break;
-						case 'T':
-							index += 3 * ((int) Math.pow(4, lastCharIndex - i));
-							break;
+			return votingGenomes;
+		}
+	}
+	
+	private static class ReadBatch { //A block of reads handed from the producer to a consumer at once, recycled through freeBatches
+		private byte[] data = new byte[1 << 16]; //Read IDs and (first) sequences
+		private int dataLength;
+		private byte[] endData = new byte[1 << 16]; //Second sequences of paired-end reads
+		private int endDataLength;
+		private int[] idStarts;
+		private int[] startStarts; //The ID of read i is data[idStarts[i], startStarts[i]), followed by its sequence up to startEnds[i]
+		private int[] startEnds;
+		private int[] endStarts;
+		private int[] endEnds;
+		private int size;
+		
+		public ReadBatch(int capacity) {
+			idStarts = new int[capacity];
+			startStarts = new int[capacity];
+			startEnds = new int[capacity];
+			endStarts = new int[capacity];
+			endEnds = new int[capacity];
+		}
+		
+		private void beginRead(byte[] source, int from, int to) {
+			idStarts[size] = dataLength;
+			appendStart(source, from, to);
+			startStarts[size] = dataLength;
+			endStarts[size] = endDataLength;
+		}
+		
+		private void appendStart(byte[] source, int from, int to) {
+			int length = to - from;
+			if(dataLength + length > data.length) {
+				data = Arrays.copyOf(data, Math.max(2 * data.length, dataLength + length));
+			}
+			System.arraycopy(source, from, data, dataLength, length);
+			dataLength += length;
+		}
+		
+		private void appendEnd(byte[] source, int from, int to) {
+			int length = to - from;
+			if(endDataLength + length > endData.length) {
+				endData = Arrays.copyOf(endData, Math.max(2 * endData.length, endDataLength + length));
+			}
+			System.arraycopy(source, from, endData, endDataLength, length);
+			endDataLength += length;
+		}
+		
+		private boolean hasSequence() {
+			return dataLength > startStarts[size];
+		}
+		
+		private void commitRead() {
+			startEnds[size] = dataLength;
+			endEnds[size] = endDataLength;
+			size++;
+		}
+		
+		private void discardRead() {
+			dataLength = idStarts[size];
+			endDataLength = endStarts[size];
+		}
+		
+		private void clear() {
+			size = 0;
+			dataLength = 0;
+			endDataLength = 0;
+		}
+		
+		private String getReadId(int i) {
+			return new String(data, idStarts[i], startStarts[i] - idStarts[i], StandardCharsets.UTF_8);
+		}
+		
+	}
+	
+	private static class ResultBlock { //UTF-8 encoded output lines of one read batch, recycled through freeResultBlocks
+		private byte[] bytes = new byte[1 << 16];
+		private int length;
+		
+		private void ensureCapacity(int extra) {
+			if(length + extra > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + extra));
+			}
+		}
+		
+		private ResultBlock append(byte[] source, int from, int to) {
+			ensureCapacity(to - from);
+			System.arraycopy(source, from, bytes, length, to - from);
+			length += to - from;
+			return this;
+		}
+		
+		private ResultBlock append(char c) { //ASCII only
+			ensureCapacity(1);
+			bytes[length++] = (byte) c;
+			return this;
+		}
+		
+		private ResultBlock append(String text) {
+			int textLength = text.length();
+			ensureCapacity(textLength);
+			for(int i = 0; i < textLength; i++) {
+				char c = text.charAt(i);
+				if(c >= 0x80) { //Non-ASCII text
+					byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+					return append(encoded, 0, encoded.length);
+				}
+				bytes[length + i] = (byte) c;
+			}
+			length += textLength;
+			return this;
+		}
+		
+		private void clear() {
+			length = 0;
+		}
+	}
+	
+	private static class LineReader { //Reads lines straight from the bytes of a file, the current line is buffer[lineStart, lineEnd) with surrounding whitespace trimmed
+		private InputStream in;
+		private byte[] buffer = new byte[1 << 20];
+		private int position;
+		private int limit;
+		private int scanned; //Bytes from position up to here contain no line break
+		private boolean endOfFile;
+		private int lineStart;
+		private int lineEnd;
+		
+		public LineReader(InputStream anInputStream) {
+			in = anInputStream;
+		}
+		
+		public boolean nextLine() throws IOException {
+			while(true) {
+				for(int i = scanned; i < limit; i++) {
+					if(buffer[i] == '\n') {
+						setLine(position, i);
+						position = i + 1;
+						scanned = position;
+						return true;
 					}
 				}
+				scanned = limit;
 				
-				kmers.add(index);
+				if(endOfFile) {
+					if(position < limit) {
+						setLine(position, limit);
+						position = limit;
+						return true;
+					}
+					return false;
+				}
+				fill();
+			}
+		}
+		
+		private void fill() throws IOException {
+			int remaining = limit - position;
+			if(position == 0 && limit == buffer.length) { //A line longer than the buffer
+				buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+			} else {
+				System.arraycopy(buffer, position, buffer, 0, remaining);
+			}
+			scanned -= position;
+			position = 0;
+			limit = remaining;
+			
+			int count = in.read(buffer, limit, buffer.length - limit);
+			if(count < 0) {
+				endOfFile = true;
+			} else {
+				limit += count;
+			}
+		}
+		
+		private void setLine(int start, int end) {
+			while(start < end && (buffer[start] & 0xFF) <= ' ') {
+				start++;
+			}
+			while(end > start && (buffer[end - 1] & 0xFF) <= ' ') {
+				end--;
 			}
+			lineStart = start;
+			lineEnd = end;
+		}
+		
+		public boolean isHeader() {
+			return lineEnd > lineStart && (buffer[lineStart] == '>' || buffer[lineStart] == '@');
+		}
+		
+		public int getIdEnd() { //The read ID of a header line runs from lineStart + 1 up to the first whitespace
+			int end = lineStart + 1;
+			while(end < lineEnd) {
+				byte b = buffer[end];
+				if(b == ' ' || b == '\t' || b == '\u000B' || b == '\f' || b == '\r') {
+					break;
+				}
+				end++;
+			}
+			return end;
+		}
+		
+		public boolean hasSameId(LineReader other) {
+			int idEnd = getIdEnd();
+			return Arrays.equals(buffer, lineStart + 1, idEnd, other.buffer, other.lineStart + 1, other.getIdEnd());
+		}
+		
+		public boolean isFinishedRead() {
+			return finishedReadIds != null && finishedReadIds.contains(new String(buffer, lineStart + 1, getIdEnd() - lineStart - 1, StandardCharsets.UTF_8));
+		}
+		
+		public void skipLines(int count) throws IOException {
+			for(int i = 0; i < count; i++) {
+				nextLine();
+			}
+		}
+		
+		public String toString() {
+			return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+		}
+		
+		public void close() throws IOException {
+			in.close();
 		}
 	}
 	
 	private static class Producer implements Runnable {		
 		private int readCounter;
+		private ReadBatch batch;
 		
 		@Override
 		public void run() {
 			try {
-				BufferedReader reader1 = null;
-				if(startPath.endsWith(".gz")) {
-					reader1 = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(startPath)), "UTF-8"));
-				} else {
-					reader1 = new BufferedReader(new FileReader(startPath));
-				}
-				
+				batch = freeBatches.take();
+				LineReader reader1 = new LineReader(MNBC_gzip.open(new File(startPath), true));
 				if(readType) {
-					BufferedReader reader2 = null;
-					if(startPath.endsWith(".gz")) {
-						reader2 = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(endPath)), "UTF-8"));
-					} else {
-						reader2 = new BufferedReader(new FileReader(endPath));
-					}
+					LineReader reader2 = new LineReader(MNBC_gzip.open(new File(endPath), true)); //Each file has its own decompression thread(s), so both ends are inflated concurrently
 					
 					if(startPath.contains(".fastq") || startPath.contains(".fq")) {
 						System.out.println("Start reading paired-end FASTQ files " + startPath + " and " + endPath);
@@ -698,263 +1431,158 @@ public class MNBC_classify { //Previously called MNBC_classify2_onlydelta1000
 			}			
 		}
 		
-		private void readTestFragFastaFile(BufferedReader reader) throws Exception {
-			String line = null;
-			String readId = null;
-			StringBuilder sequence = new StringBuilder();
-			
-			if(finishedReadIds == null) {
-				while((line = reader.readLine()) != null) {
-					line = line.trim();
-					if(line.startsWith(">") || line.startsWith("@")) {						
-						if(!sequence.isEmpty()) {
-							readQueue.put(new String[] {readId, sequence.toString().toUpperCase()});
-							readCounter++;
-						}
-						
-						readId = line.substring(1).split("\\s+")[0];
-						sequence.setLength(0);
-					} else {
-						sequence.append(line);
-					}
-				}				
-				if(!sequence.isEmpty()) {
-					readQueue.put(new String[] {readId, sequence.toString().toUpperCase()});
-					readCounter++;
-				}
-			} else {
-				boolean skip = false;
-				while((line = reader.readLine()) != null) {
-					line = line.trim();
-					if(line.startsWith(">") || line.startsWith("@")) {
-						if(!sequence.isEmpty()) {
-							readQueue.put(new String[] {readId, sequence.toString().toUpperCase()});
-							readCounter++;
-						}
-						
-						readId = line.substring(1).split("\\s+")[0];
-						sequence.setLength(0);
-						if(finishedReadIds.contains(readId)) {
-							skip = true;						
+		private void commitRead() throws InterruptedException {
+			batch.commitRead();
+			readCounter++;
+			if(batch.size == batchSize) {
+				readQueue.put(batch);
+				batch = freeBatches.take();
+			}
+		}
+		
+		private void finishReads() throws InterruptedException {
+			if(batch.size > 0) {
+				readQueue.put(batch);
+			}
+			readQueue.put(END_OF_READS);
+		}
+		
+		private void readTestFragFastaFile(LineReader reader) throws Exception {
+			boolean inRead = false; //Whether a header has been seen and its read isn't skipped
+			while(reader.nextLine()) {
+				if(reader.isHeader()) {
+					if(inRead) {
+						if(batch.hasSequence()) {
+							commitRead();
 						} else {
-							skip = false;
+							batch.discardRead();
 						}
-					} else {
-						if(!skip) {
-							sequence.append(line);
-						}						
 					}
+					
+					inRead = !reader.isFinishedRead();
+					if(inRead) {
+						batch.beginRead(reader.buffer, reader.lineStart + 1, reader.getIdEnd());
+					}
+				} else if(inRead) {
+					batch.appendStart(reader.buffer, reader.lineStart, reader.lineEnd);
 				}
-				if(!sequence.isEmpty()) {
-					readQueue.put(new String[] {readId, sequence.toString().toUpperCase()});
-					readCounter++;
+			}
+			if(inRead) {
+				if(batch.hasSequence()) {
+					commitRead();
+				} else {
+					batch.discardRead();
 				}
-			}			
+			}
 			
 			reader.close();
-			readQueue.put(new String[0]);
+			finishReads();
 		}
 		
-		private void readTestFragFastqFile(BufferedReader reader) throws Exception {
-			String line = null;
-			if(finishedReadIds == null) {
-				while((line = reader.readLine()) != null) {
-					line = line.trim();
-					if(line.startsWith(">") || line.startsWith("@")) {
-						String readId = line.substring(1).split("\\s+")[0];						
-						String readSequence = reader.readLine().trim().toUpperCase();
-						reader.readLine();
-						reader.readLine();
-						readQueue.put(new String[] {readId, readSequence});
-						readCounter++;						
-					}
-				}
-			} else {
-				while((line = reader.readLine()) != null) {
-					line = line.trim();
-					if(line.startsWith(">") || line.startsWith("@")) {
-						String readId = line.substring(1).split("\\s+")[0];
-						if(finishedReadIds.contains(readId)) {
-							for(int i = 0; i < 3; i++) {
-								reader.readLine();
-							}						
-						} else {
-							String readSequence = reader.readLine().trim().toUpperCase();
-							reader.readLine();
-							reader.readLine();
-							readQueue.put(new String[] {readId, readSequence});
-							readCounter++;
+		private void readTestFragFastqFile(LineReader reader) throws Exception {
+			while(reader.nextLine()) {
+				if(reader.isHeader()) {
+					if(reader.isFinishedRead()) {
+						reader.skipLines(3);
+					} else {
+						batch.beginRead(reader.buffer, reader.lineStart + 1, reader.getIdEnd());
+						if(!reader.nextLine()) {
+							throw new IOException("FASTQ file ends after header " + reader);
 						}
+						batch.appendStart(reader.buffer, reader.lineStart, reader.lineEnd);
+						reader.skipLines(2);
+						commitRead();
 					}
 				}
-			}			
+			}
 			
 			reader.close();
-			readQueue.put(new String[0]);
+			finishReads();
 		}
 		
-		private void readTestFragFastaFiles(BufferedReader reader1, BufferedReader reader2) throws Exception {		
-			String line1 = null;
-			String line2 = null;
-			String readId = null;
-			StringBuilder start = new StringBuilder();
-			StringBuilder end = new StringBuilder();
-			
-			if(finishedReadIds == null) {
-				while((line1 = reader1.readLine()) != null) {
-					line1 = line1.trim();
-					line2 = reader2.readLine().trim();
-					if(line1.startsWith(">") || line1.startsWith("@")) {
-						if(!start.isEmpty()) {
-							readQueue.put(new String[] {readId, start.toString().toUpperCase(), end.toString().toUpperCase()});
-							readCounter++;
-						}
-						
-						if(!line2.startsWith(">") && !line2.startsWith("@")) {
-							System.out.println("Paired-end FASTA format error: " + line1 + " | " + line2);
-							System.exit(1);
-						}						
-
-						readId = line1.substring(1).split("\\s+")[0];
-						if(!readId.equals(line2.substring(1).split("\\s+")[0])) {
-							System.out.println("Paired-end FASTA format error: " + line1 + " | " + line2);
-							System.exit(1);
-						}
-						start.setLength(0);
-						end.setLength(0);				
-					} else {
-						start.append(line1);
-						end.append(line2);
-					}
-				}
-				if(!start.isEmpty()) {
-					readQueue.put(new String[] {readId, start.toString().toUpperCase(), end.toString().toUpperCase()});
-					readCounter++;
+		private void readTestFragFastaFiles(LineReader reader1, LineReader reader2) throws Exception {		
+			boolean inRead = false; //Whether a header has been seen and its read isn't skipped
+			while(reader1.nextLine()) {
+				if(!reader2.nextLine()) {
+					throw new IOException("Paired-end FASTA files have different numbers of lines");
 				}
-			} else {
-				boolean skip = false;
-				while((line1 = reader1.readLine()) != null) {
-					line1 = line1.trim();
-					line2 = reader2.readLine().trim();
-					if(line1.startsWith(">") || line1.startsWith("@")) {
-						if(!start.isEmpty()) {
-							readQueue.put(new String[] {readId, start.toString().toUpperCase(), end.toString().toUpperCase()});
-							readCounter++;
-						}
-						
-						if(!line2.startsWith(">") && !line2.startsWith("@")) {
-							System.out.println("Paired-end FASTA format error: " + line1 + " | " + line2);
-							System.exit(1);
-						}						
-
-						readId = line1.substring(1).split("\\s+")[0];
-						if(!readId.equals(line2.substring(1).split("\\s+")[0])) {
-							System.out.println("Paired-end FASTA format error: " + line1 + " | " + line2);
-							System.exit(1);
-						}
-						start.setLength(0);
-						end.setLength(0);
-
-						if(finishedReadIds.contains(readId)) {
-							skip = true;			
+				
+				if(reader1.isHeader()) {
+					if(inRead) {
+						if(batch.hasSequence()) {
+							commitRead();
 						} else {
-							skip = false;
-						}
-					} else {
-						if(!skip) {
-							start.append(line1);
-							end.append(line2);
+							batch.discardRead();
 						}
 					}
+					
+					if(!reader2.isHeader() || !reader1.hasSameId(reader2)) {
+						System.out.println("Paired-end FASTA format error: " + reader1 + " | " + reader2);
+						System.exit(1);
+					}
+					
+					inRead = !reader1.isFinishedRead();
+					if(inRead) {
+						batch.beginRead(reader1.buffer, reader1.lineStart + 1, reader1.getIdEnd());
+					}
+				} else if(inRead) {
+					batch.appendStart(reader1.buffer, reader1.lineStart, reader1.lineEnd);
+					batch.appendEnd(reader2.buffer, reader2.lineStart, reader2.lineEnd);
 				}
-				if(!start.isEmpty()) {
-					readQueue.put(new String[] {readId, start.toString().toUpperCase(), end.toString().toUpperCase()});
-					readCounter++;
+			}
+			if(inRead) {
+				if(batch.hasSequence()) {
+					commitRead();
+				} else {
+					batch.discardRead();
 				}
 			}
-			if(reader2.readLine() != null) {
-				System.out.println("Paired-end FASTA format error at the end: null | " + line2);
+			if(reader2.nextLine()) {
+				System.out.println("Paired-end FASTA format error at the end: null | " + reader2);
 				System.exit(1);
 			}
 			
 			reader1.close();
 			reader2.close();
-			readQueue.put(new String[0]);
+			finishReads();
 		}
 		
-		private void readTestFragFastqFiles(BufferedReader reader1, BufferedReader reader2) throws Exception {
-			String line1 = null;
-			String line2 = null;
-			if(finishedReadIds == null) {
-				while((line1 = reader1.readLine()) != null) {
-					line1 = line1.trim();
-					line2 = reader2.readLine().trim();
-					if(line1.startsWith(">") || line1.startsWith("@")) {
-						if(!line2.startsWith(">") && !line2.startsWith("@")) {
-							System.out.println("Paired-end FASTQ format error: " + line1 + " | " + line2);
-							System.exit(1);
-						}
-
-						String readId = line1.substring(1).split("\\s+")[0];
-						if(!readId.equals(line2.substring(1).split("\\s+")[0])) {
-							System.out.println("Paired-end FASTQ format error: " + line1 + " | " + line2);
-							System.exit(1);
-						}
-						
-						String startSeq = reader1.readLine().trim().toUpperCase();
-						String endSeq = reader2.readLine().trim().toUpperCase();					
-						reader1.readLine();
-						reader1.readLine();
-						reader2.readLine();
-						reader2.readLine();
-
-						readQueue.put(new String[] {readId, startSeq, endSeq});
-						readCounter++;						
-					}
+		private void readTestFragFastqFiles(LineReader reader1, LineReader reader2) throws Exception {
+			while(reader1.nextLine()) {
+				if(!reader2.nextLine()) {
+					throw new IOException("Paired-end FASTQ files have different numbers of lines");
 				}
-			} else {
-				while((line1 = reader1.readLine()) != null) {
-					line1 = line1.trim();
-					line2 = reader2.readLine().trim();
-					if(line1.startsWith(">") || line1.startsWith("@")) {
-						if(!line2.startsWith(">") && !line2.startsWith("@")) {
-							System.out.println("Paired-end FASTQ format error: " + line1 + " | " + line2);
-							System.exit(1);
-						}
-
-						String readId = line1.substring(1).split("\\s+")[0];
-						if(!readId.equals(line2.substring(1).split("\\s+")[0])) {
-							System.out.println("Paired-end FASTQ format error: " + line1 + " | " + line2);
-							System.exit(1);
-						}
-
-						if(finishedReadIds.contains(readId)) {
-							for(int i = 0; i < 3; i++) {
-								reader1.readLine();
-								reader2.readLine();
-							}
-						} else {
-							String startSeq = reader1.readLine().trim().toUpperCase();
-							String endSeq = reader2.readLine().trim().toUpperCase();					
-							reader1.readLine();
-							reader1.readLine();
-							reader2.readLine();
-							reader2.readLine();
-
-							readQueue.put(new String[] {readId, startSeq, endSeq});
-							readCounter++;
+				
+				if(reader1.isHeader()) {
+					if(!reader2.isHeader() || !reader1.hasSameId(reader2)) {
+						System.out.println("Paired-end FASTQ format error: " + reader1 + " | " + reader2);
+						System.exit(1);
+					}
+					
+					if(reader1.isFinishedRead()) {
+						reader1.skipLines(3);
+						reader2.skipLines(3);
+					} else {
+						batch.beginRead(reader1.buffer, reader1.lineStart + 1, reader1.getIdEnd());
+						if(!reader1.nextLine() || !reader2.nextLine()) {
+							throw new IOException("Paired-end FASTQ files end after header " + reader1);
 						}
+						batch.appendStart(reader1.buffer, reader1.lineStart, reader1.lineEnd);
+						batch.appendEnd(reader2.buffer, reader2.lineStart, reader2.lineEnd);
+						reader1.skipLines(2);
+						reader2.skipLines(2);
+						commitRead();
 					}
 				}
 			}
-			if(reader2.readLine() != null) {
-				System.out.println("Paired-end FASTQ format error at the end: null | " + line2);
+			if(reader2.nextLine()) {
+				System.out.println("Paired-end FASTQ format error at the end: null | " + reader2);
 				System.exit(1);
 			}
 			
 			reader1.close();
 			reader2.close();
-			readQueue.put(new String[0]);
+			finishReads();
 		}
 	}
 	
@@ -970,19 +1598,23 @@ public class MNBC_classify { //Previously called MNBC_classify2_onlydelta1000
 		@Override
 		public String call() {
 			String filename = countFile.getName();
-			String[] fields = filename.split("_");
-			genomeIds[id] = fields[0] + "_" + fields[1];
+			genomeIds[id] = MNBC_db.getGenomeId(filename);
 			
-			genomeMinimizers[id] = new IntHashSet();
 			try {
-				BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(countFile)), "UTF-8"));
-				String line = reader.readLine();
-				logFres[id] = (float) Math.log(1.0 / Integer.parseInt(line));				
-				
-				while((line = reader.readLine()) != null) {
-					genomeMinimizers[id].add(Integer.parseInt(line));
+				MNBC_db.CountFile content = MNBC_db.readCountFile(countFile, k);
+				if(content.k != 0 && content.k != k) { //Text count files don't record k or w
+					return "ERROR: " + filename + " was built with k=" + content.k + " but classification uses k=" + k;
+				}
+				if(content.w != 0 && content.w != w) {
+					return "ERROR: " + filename + " was built with w=" + content.w + " but classification uses w=" + w;
 				}
-				reader.close();
+				if(content.ordering >= 0 && content.ordering != ordering) {
+					return "ERROR: " + filename + " was built with " + MNBC_minimizer.ORDERING_NAMES[content.ordering] + " k-mer ordering but classification uses " + MNBC_minimizer.ORDERING_NAMES[ordering];
+				}
+				logFres[id] = (float) Math.log(1.0 / content.kmerTotalCount);
+				genomeMinimizers[id] = MNBC_db.createMinimizerSet(minimizerStorage, content);
+			} catch(NumberFormatException e) { //A text count file of a greater k than classification uses, without a manifest telling so
+				return "ERROR: " + filename + " holds a minimizer that doesn't fit k=" + k + " (" + e.getMessage() + "), it was probably built with a greater k, see -k";
 			} catch(Exception e) {
 				e.printStackTrace();
 				return "ERROR: couldn't read " + filename;
@@ -992,17 +1624,93 @@ public class MNBC_classify { //Previously called MNBC_classify2_onlydelta1000
 		}		
 	}
 	
+	private static class MinimizerIndex { //Inverted index: each distinct minimizer maps to the ascending list of genomes containing it
+		private static final int PAGE_BITS = 30; //Posting lists of a large DB exceed one Java array, so they are split into pages
+		private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+		
+		private long[] minimizers; //Sorted distinct minimizers
+		private long[] offsets; //Start of each minimizer's posting list, plus a final end offset
+		private int[][] postings;
+		
+		public MinimizerIndex(MNBC_db.MinimizerSet[] genomeMinimizerSets) {
+			MutableLongIntMap minimizer2Slot = new LongIntHashMap(); //First holds the number of genomes per minimizer, then the slot of the minimizer
+			for(MNBC_db.MinimizerSet genomeMinimizerSet : genomeMinimizerSets) {
+				LongIterator it = genomeMinimizerSet.longIterator();
+				while(it.hasNext()) {
+					minimizer2Slot.addToValue(it.next(), 1);
+				}
+			}
+			
+			minimizers = minimizer2Slot.keysView().toSortedArray();
+			offsets = new long[minimizers.length + 1];
+			for(int slot = 0; slot < minimizers.length; slot++) {
+				offsets[slot + 1] = offsets[slot] + minimizer2Slot.get(minimizers[slot]);
+				minimizer2Slot.put(minimizers[slot], slot);
+			}
+			
+			long totalPostings = offsets[minimizers.length];
+			int numberOfPages = (int) ((totalPostings + PAGE_MASK) >>> PAGE_BITS);
+			postings = new int[numberOfPages][];
+			for(int page = 0; page < numberOfPages; page++) {
+				postings[page] = new int[(int) Math.min(1L << PAGE_BITS, totalPostings - ((long) page << PAGE_BITS))];
+			}
+			
+			long[] fillPositions = Arrays.copyOf(offsets, minimizers.length);
+			for(int i = 0; i < genomeMinimizerSets.length; i++) { //Genomes are added in order, so every posting list is ascending
+				LongIterator it = genomeMinimizerSets[i].longIterator();
+				while(it.hasNext()) {
+					long position = fillPositions[minimizer2Slot.get(it.next())]++;
+					postings[(int) (position >>> PAGE_BITS)][(int) (position & PAGE_MASK)] = i;
+				}
+			}
+		}
+		
+		public int size() {
+			return minimizers.length;
+		}
+		
+		//Adds the number of shared read minimizers to counters of each touched genome, and lists the touched genomes (unordered) in candidates
+		public int countSharedMinimizers(MutableLongSet readMinimizers, int[] counters, int[] candidates) {
+			int numberOfCandidates = 0;
+			LongIterator it = readMinimizers.longIterator();
+			while(it.hasNext()) {
+				int slot = Arrays.binarySearch(minimizers, it.next());
+				if(slot < 0) {
+					continue;
+				}
+				
+				for(long position = offsets[slot]; position < offsets[slot + 1]; position++) {
+					int genome = postings[(int) (position >>> PAGE_BITS)][(int) (position & PAGE_MASK)];
+					if(counters[genome]++ == 0) {
+						candidates[numberOfCandidates++] = genome;
+					}
+				}
+			}
+			
+			return numberOfCandidates;
+		}
+	}
+	
 	private static void printHelpInfo() {
 		System.out.println("This MNBC_classify tool (v1.2) classifies reads against a reference database.");
 		System.out.println("-h:	Show this help menu");
 		System.out.println("-c:	Number of threads");		
-		System.out.println("-d:	Input database directory");
+		System.out.println("-d:	Input database directory (containing text _count.gz or binary _count.bin files), or packed database file produced by 'MNBC pack'");
 		System.out.println("-m:	Input taxonomy file");
 		System.out.println("-o:	Output classification file");		
 		System.out.println("-t:	Type of reads (paired-end: 2, single-end: 1). Paired-end reads have two following (gzipped) .fasta/.fastq files. Single-end reads have one following (gzipped) .fasta/.fastq file.");
-		System.out.println("-k (optional):	K-mer length (an integer between 1 and 15 inclusive) (default 15)");
+		System.out.println("-k (optional):	K-mer length the database was built with (an integer between 1 and 31 inclusive) (default 15)");
+		System.out.println("-w (optional): Window size the database was built with, in number of consecutive k-mers. It is checked against the manifest of databases built by this version, and against binary and packed databases (default k)");
+		System.out.println("-a (optional): K-mer ordering the database was built with (alphabetical or hash), checked against the manifest of databases built by this version, and against binary and packed databases (default alphabetical)");
 		System.out.println("-u (optional): Filtering threshold on the ratio of common read-genome minimizers over all read minimizers (default 0.35). Higher values lead to less reads classified, though with higher confidence. Lower values lead to more reads classified (i.e. leave less reads unclassified). When set to 0, the read will be left unclassified only if all reference genomes share no minimizers with it.");
 		System.out.println("-p (optional): Penalty for absent minimizers (default -2000)");
 		System.out.println("-e (optional): Threshold on the difference between adjacent scores (default 1500)");
+		System.out.println("-b (optional): Number of reads handed to a classifying thread at once. With '-s batch', a batch is scored in passes of at most 16,777,216 reads times genomes (e.g. 559 reads against 30,000 genomes), holding the scores of one pass, up to 320 MB per thread when every genome passes the filtering threshold (default 1024, or 8192 with '-s batch')");
+		System.out.println("-s (optional): Scoring strategy (genome: test the read against every reference genome; index: build an inverted minimizer index at startup and only score genomes sharing minimizers with the read, which is much faster on large databases but uses more memory while loading; cascade: test the read against the union of the minimizers of each clade (see -l) first, then only against the genomes of the clades that can still reach the voting set, giving the same results as genome but much faster on databases with many genomes per clade, at the cost of the clade minimizers in memory; batch: test all reads of a batch against one reference genome at a time, giving the same results as genome but faster thanks to better use of the CPU caches, especially on a packed database) (default genome)");
+		System.out.println("-x (optional): Document frequency cutoff (between 0.9 and 1). Read minimizers in at least this fraction of the reference genomes, according to the table written by 'MNBC frequency', count as shared with every genome instead of being tested against each of them. 1 only skips the minimizers in all genomes, giving exactly the same results; lower values also skip nearly ubiquitous ones, slightly overcounting the few genomes lacking them. The tests saved are reported at the end. Not used with '-s index' (default off)");
+		System.out.println("-f (optional): Document frequency table of '-x' (default minimizer_df.tsv of the database directory, required with a packed database)");
+		System.out.println("-l (optional): Rank of the clades of '-s cascade' (genus, family, order, class, phylum, kingdom or domain). The share of reads that had to be tested against the genomes of more than their top clade is reported at the end (default genus)");
+		System.out.println("-r (optional): Storage of the reference genome minimizers of a database directory (hash: hash sets, fastest with '-s genome'; sorted: sorted arrays, about a quarter of the memory of hash and fastest with '-s batch'; bitmap: compressed bitmaps, the least memory, only for k up to 15; offheap: sorted arrays outside the Java heap, so that '-Xmx' only needs to cover the reads being classified and garbage collection never scans the database, which requires raising '-XX:MaxDirectMemorySize' above the database size). The memory taken is reported after reading the database (default hash)");
+		System.out.println("-z (optional): Compression of the output file (none; gzip: standard gzip readable by any tool; bgzf: blocked gzip as written by bgzip, also indexable). Compressed output is written in parallel, and an interrupted run can still be resumed with the same -z value (default none)");
 	}
 }
@@ -0,0 +1,139 @@
+/**
+ *
+ * @author Ruipeng Lu (ruipeng.lu@inspection.gc.ca)
+ *
+ */
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class MNBC_convert {
+	private static int k = 15;
+	private static int w; //k if not set
+	private static int ordering = MNBC_minimizer.ALPHABETICAL;
+	private static int numberOfThreads;
+	private static String inputDirPath;
+	private static String outputDirPath;
+
+	public static void execute(String[] args) {
+		if(args.length == 1) {
+			printHelpInfo();
+			System.exit(0);
+		}
+
+		for(int i = 1; i < args.length; i++) {
+			if(args[i].startsWith("-")) {
+				switch(args[i].charAt(1)) {
+					case 'k':
+						k = Integer.parseInt(args[i + 1]);
+						break;
+					case 'a':
+						ordering = MNBC_minimizer.parseOrdering(args[i + 1]);
+						break;
+					case 'w':
+						w = Integer.parseInt(args[i + 1]);
+						break;
+					case 'c':
+						numberOfThreads = Integer.parseInt(args[i + 1]);
+						break;
+					case 'i':
+						inputDirPath = args[i + 1];
+						break;
+					case 'o':
+						outputDirPath = args[i + 1];
+						break;
+					case 'h':
+						printHelpInfo();
+						System.exit(0);
+				}
+			}
+		}
+
+		if(w == 0) {
+			w = k;
+		}
+		if((k <= 0) || (k > MNBC_minimizer.MAX_K) || (w <= 0) || (ordering < 0) || (numberOfThreads == 0) || (inputDirPath == null) || (outputDirPath == null)) {
+			System.out.println("Error: not all required parameters are correctly set -- Run 'MNBC convert -h' for help");
+			System.exit(0);
+		}
+
+		long startTime = System.nanoTime();
+		ExecutorService nested = Executors.newFixedThreadPool(numberOfThreads);
+		CompletionService<String> pool = new ExecutorCompletionService<String>(nested);
+
+		int taskCounter = 0;
+		for(File countFile : new File(inputDirPath).listFiles()) {
+			if(countFile.getName().endsWith(MNBC_db.TEXT_SUFFIX)) {
+				pool.submit(new CountFileConverter(countFile));
+				taskCounter++;
+			}
+		}
+		System.out.println("Converting " + taskCounter + " count files");
+
+		int failedCounter = 0;
+		for(int i = 0; i < taskCounter; i++) {
+			try {
+				String outcome = pool.take().get();
+				if(outcome.contains("ERROR")) {
+					System.out.println(outcome);
+					failedCounter++;
+				}
+			} catch(Exception e) {
+				System.out.println("Exception on " + i + " th returned task");
+				e.printStackTrace();
+				failedCounter++;
+			}
+		}
+		nested.shutdown();
+
+		long endTime = System.nanoTime();
+		System.out.println("Converted " + (taskCounter - failedCounter) + " count files (" + failedCounter + " failed) in " + ((endTime - startTime) / 1000000000) + " seconds");
+		if(failedCounter > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static class CountFileConverter implements Callable<String> {
+		private File countFile;
+
+		public CountFileConverter(File aCountFile) {
+			countFile = aCountFile;
+		}
+
+		@Override
+		public String call() {
+			String filename = countFile.getName();
+			try {
+				MNBC_db.CountFile content = MNBC_db.readTextCountFile(countFile, k);
+				content.sort();
+				String outputFilename = filename.substring(0, filename.length() - MNBC_db.TEXT_SUFFIX.length()) + MNBC_db.BINARY_SUFFIX;
+				File outputFile = new File(outputDirPath, outputFilename);
+				if(content.longMinimizers != null) {
+					MNBC_db.writeBinaryCountFile(outputFile, k, w, ordering, content.kmerTotalCount, content.longMinimizers);
+				} else {
+					MNBC_db.writeBinaryCountFile(outputFile, k, w, ordering, content.kmerTotalCount, content.minimizers);
+				}
+			} catch(Exception e) {
+				e.printStackTrace();
+				return "ERROR: couldn't convert " + filename;
+			}
+
+			return "Converted " + filename;
+		}
+	}
+
+	private static void printHelpInfo() {
+		System.out.println("This MNBC_convert tool (v1.2) converts the gzipped text count files of a database into the compact binary format.");
+		System.out.println("-h:	Show this help menu");
+		System.out.println("-c:	Number of threads");
+		System.out.println("-i:	Input database directory containing _count.gz files");
+		System.out.println("-o:	Existing output database directory for the _count.bin files");
+		System.out.println("-k (optional):	K-mer length the database was built with (an integer between 1 and 31 inclusive) (default 15)");
+		System.out.println("-w (optional):	Window size the database was built with (default k)");
+		System.out.println("-a (optional):	K-mer ordering the database was built with (alphabetical or hash) (default alphabetical)");
+	}
+}
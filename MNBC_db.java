@@ -0,0 +1,611 @@
+/**
+ *
+ * @author Ruipeng Lu (ruipeng.lu@inspection.gc.ca)
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.eclipse.collections.api.iterator.IntIterator;
+import org.eclipse.collections.api.iterator.LongIterator;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.api.list.primitive.MutableLongList;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+
+public class MNBC_db { //Reading and writing the per-genome count files of a database
+	public static final String TEXT_SUFFIX = "_count.gz"; //First line is the valid k-mer total count, then one decimal minimizer per line
+	public static final String BINARY_SUFFIX = "_count.bin";
+
+	//Binary count file layout (big-endian): magic, version, k, w (from version 2, version 1 files have w=k), k-mer ordering (from version 3,
+	//older files are alphabetical), valid k-mer total count (long), number of minimizers, then the ascending minimizers as unsigned LEB128 varints of the gaps to their predecessors, then the CRC32 of all previous bytes.
+	//Minimizers are ints up to k=15 and longs above (see MNBC_minimizer.isLong), the varints are the same either way
+	private static final int MAGIC = 0x4D4E4243; //"MNBC"
+	private static final int VERSION = 3;
+	private static final int MIN_LENGTH = 28; //Version 1 header, plus the checksum
+
+	public static final String HASH = "hash"; //Storage backends of the minimizer sets in classify
+	public static final String SORTED = "sorted";
+	public static final String BITMAP = "bitmap";
+	public static final String OFF_HEAP = "offheap";
+
+	//Read-only view of one genome's minimizers, as used when scoring reads. Minimizers are passed as longs whatever the k of the database,
+	//sets of int minimizers (k up to 15) simply never contain a value outside the int range
+	public interface MinimizerSet {
+		boolean contains(long minimizer);
+		int size();
+		LongIterator longIterator();
+		long getResidentBytes(); //Approximate memory taken by the minimizers
+
+		//Sets contained[j] to whether each of the ascending minimizers[0, count) is in the set, as batch scoring tests a whole read batch at once
+		default void findContained(long[] sortedMinimizers, int count, boolean[] contained) {
+			for(int j = 0; j < count; j++) {
+				contained[j] = contains(sortedMinimizers[j]);
+			}
+		}
+	}
+
+	public static MinimizerSet createMinimizerSet(String storage, CountFile content) { //The minimizers of content are sorted in place if needed
+		if(content.longMinimizers != null) {
+			return createLongMinimizerSet(storage, content.longMinimizers);
+		}
+
+		int[] minimizers = content.minimizers;
+		if(storage.equals(HASH)) {
+			HashMinimizerSet set = new HashMinimizerSet(minimizers.length);
+			set.addAll(minimizers);
+			return set;
+		}
+
+		for(int i = 1; i < minimizers.length; i++) {
+			if(minimizers[i - 1] > minimizers[i]) {
+				Arrays.sort(minimizers);
+				break;
+			}
+		}
+		if(storage.equals(OFF_HEAP)) { //Direct memory is limited by -XX:MaxDirectMemorySize rather than -Xmx
+			IntBuffer buffer = ByteBuffer.allocateDirect(4 * minimizers.length).order(ByteOrder.nativeOrder()).asIntBuffer();
+			buffer.put(minimizers);
+			return new IntBufferMinimizerSet(buffer.flip());
+		}
+		return storage.equals(BITMAP) ? new BitmapMinimizerSet(minimizers) : new IntArrayMinimizerSet(minimizers);
+	}
+
+	private static MinimizerSet createLongMinimizerSet(String storage, long[] minimizers) {
+		if(storage.equals(HASH)) {
+			LongHashMinimizerSet set = new LongHashMinimizerSet(minimizers.length);
+			set.addAll(minimizers);
+			return set;
+		}
+		if(storage.equals(BITMAP)) { //Containers are keyed by the upper 16 bits of an int
+			throw new IllegalArgumentException("bitmap storage only supports k up to " + MNBC_minimizer.MAX_INT_K);
+		}
+
+		for(int i = 1; i < minimizers.length; i++) {
+			if(minimizers[i - 1] > minimizers[i]) {
+				Arrays.sort(minimizers);
+				break;
+			}
+		}
+		if(storage.equals(OFF_HEAP)) {
+			LongBuffer buffer = ByteBuffer.allocateDirect(8 * minimizers.length).order(ByteOrder.nativeOrder()).asLongBuffer();
+			buffer.put(minimizers);
+			return new LongBufferMinimizerSet(buffer.flip());
+		}
+		return new LongArrayMinimizerSet(minimizers);
+	}
+
+	public static long getHashSetBytes(long size, int width) { //Open-addressing tables are kept at least twice as large as their number of elements, in powers of two
+		return width * Long.highestOneBit(Math.max(1, 2 * size)) * 2;
+	}
+
+	public static class HashMinimizerSet extends IntHashSet implements MinimizerSet {
+		private static final long serialVersionUID = 1L;
+
+		public HashMinimizerSet(int initialCapacity) {
+			super(initialCapacity);
+		}
+
+		@Override
+		public boolean contains(long minimizer) {
+			return minimizer == (int) minimizer && contains((int) minimizer);
+		}
+
+		@Override
+		public LongIterator longIterator() {
+			IntIterator it = intIterator();
+			return new LongIterator() {
+				@Override
+				public long next() {
+					return it.next();
+				}
+
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+			};
+		}
+
+		@Override
+		public long getResidentBytes() {
+			return getHashSetBytes(size(), 4);
+		}
+	}
+
+	public static class LongHashMinimizerSet extends LongHashSet implements MinimizerSet {
+		private static final long serialVersionUID = 1L;
+
+		public LongHashMinimizerSet(int initialCapacity) {
+			super(initialCapacity);
+		}
+
+		@Override
+		public long getResidentBytes() {
+			return getHashSetBytes(size(), 8);
+		}
+	}
+
+	//Ascending minimizers searched in place, wherever they are held: an int or long array on the Java heap, or an int or long buffer
+	//outside it (direct memory, or a memory-mapped packed database, where the garbage collector only sees the buffer object).
+	//A run only ever uses one subclass, so get() is inlined into the searches.
+	public static abstract class SortedMinimizerSet implements MinimizerSet {
+		protected abstract long get(int index);
+
+		private int binarySearch(int from, int to, long minimizer) { //Same result as Arrays.binarySearch. A branchy search beats a branch-free
+			int low = from;                                           //one here, as its speculative loads hide cache misses
+			int high = to - 1;
+			while(low <= high) {
+				int middle = (low + high) >>> 1;
+				long value = get(middle);
+				if(value < minimizer) {
+					low = middle + 1;
+				} else if(value > minimizer) {
+					high = middle - 1;
+				} else {
+					return middle;
+				}
+			}
+			return -(low + 1);
+		}
+
+		@Override
+		public boolean contains(long minimizer) {
+			return binarySearch(0, size(), minimizer) >= 0;
+		}
+
+		@Override
+		public void findContained(long[] sortedMinimizers, int count, boolean[] contained) { //Galloping merge of the two ascending sequences
+			int length = size();
+			int position = 0; //Every minimizer before it is smaller than the current query
+			for(int j = 0; j < count; j++) {
+				long minimizer = sortedMinimizers[j];
+				int step = 1;
+				int low = position;
+				while(position < length && get(position) < minimizer) {
+					low = position + 1;
+					position += step;
+					step <<= 1;
+				}
+				position = binarySearch(low, Math.min(position + 1, length), minimizer);
+				contained[j] = position >= 0;
+				if(position < 0) {
+					position = -position - 1;
+				}
+			}
+		}
+
+		@Override
+		public LongIterator longIterator() {
+			return new LongIterator() {
+				private int position = 0;
+
+				@Override
+				public long next() {
+					return get(position++);
+				}
+
+				@Override
+				public boolean hasNext() {
+					return position < size();
+				}
+			};
+		}
+	}
+
+	public static class IntArrayMinimizerSet extends SortedMinimizerSet { //About a third of the memory of a hash set
+		private int[] minimizers;
+
+		public IntArrayMinimizerSet(int[] someSortedMinimizers) {
+			minimizers = someSortedMinimizers;
+		}
+
+		@Override
+		protected long get(int index) {
+			return minimizers[index];
+		}
+
+		@Override
+		public int size() {
+			return minimizers.length;
+		}
+
+		@Override
+		public long getResidentBytes() {
+			return 4L * minimizers.length + 16;
+		}
+	}
+
+	public static class LongArrayMinimizerSet extends SortedMinimizerSet {
+		private long[] minimizers;
+
+		public LongArrayMinimizerSet(long[] someSortedMinimizers) {
+			minimizers = someSortedMinimizers;
+		}
+
+		@Override
+		protected long get(int index) {
+			return minimizers[index];
+		}
+
+		@Override
+		public int size() {
+			return minimizers.length;
+		}
+
+		@Override
+		public long getResidentBytes() {
+			return 8L * minimizers.length + 16;
+		}
+	}
+
+	public static class IntBufferMinimizerSet extends SortedMinimizerSet {
+		private IntBuffer minimizers;
+
+		public IntBufferMinimizerSet(IntBuffer someSortedMinimizers) {
+			minimizers = someSortedMinimizers;
+		}
+
+		@Override
+		protected long get(int index) {
+			return minimizers.get(index);
+		}
+
+		@Override
+		public int size() {
+			return minimizers.limit();
+		}
+
+		@Override
+		public long getResidentBytes() { //Outside the Java heap
+			return 4L * minimizers.limit();
+		}
+	}
+
+	public static class LongBufferMinimizerSet extends SortedMinimizerSet {
+		private LongBuffer minimizers;
+
+		public LongBufferMinimizerSet(LongBuffer someSortedMinimizers) {
+			minimizers = someSortedMinimizers;
+		}
+
+		@Override
+		protected long get(int index) {
+			return minimizers.get(index);
+		}
+
+		@Override
+		public int size() {
+			return minimizers.limit();
+		}
+
+		@Override
+		public long getResidentBytes() { //Outside the Java heap
+			return 8L * minimizers.limit();
+		}
+	}
+
+	//Roaring-style compressed bitmap: minimizers are split by their upper 16 bits into containers of lower 16 bits, each container being
+	//either a sorted char array (up to 4096 values, 2 bytes each) or a 65536-bit bitmap (8 KB) when denser
+	public static class BitmapMinimizerSet implements MinimizerSet {
+		private static final int MAX_ARRAY_CONTAINER_SIZE = 4096;
+
+		private char[] keys; //Ascending upper 16 bits of the containers
+		private char[][] arrayContainers; //Per container, either the sorted lower 16 bits...
+		private long[][] bitmapContainers; //...or their bitmap
+		private int size;
+
+		public BitmapMinimizerSet(int[] sortedMinimizers) {
+			size = sortedMinimizers.length;
+			int numberOfContainers = 0;
+			for(int i = 0; i < size; i++) {
+				if(i == 0 || (sortedMinimizers[i] >>> 16) != (sortedMinimizers[i - 1] >>> 16)) {
+					numberOfContainers++;
+				}
+			}
+
+			keys = new char[numberOfContainers];
+			arrayContainers = new char[numberOfContainers][];
+			bitmapContainers = new long[numberOfContainers][];
+			int start = 0;
+			for(int c = 0; c < numberOfContainers; c++) {
+				int key = sortedMinimizers[start] >>> 16;
+				int end = start;
+				while(end < size && (sortedMinimizers[end] >>> 16) == key) {
+					end++;
+				}
+
+				keys[c] = (char) key;
+				if(end - start <= MAX_ARRAY_CONTAINER_SIZE) {
+					arrayContainers[c] = new char[end - start];
+					for(int i = start; i < end; i++) {
+						arrayContainers[c][i - start] = (char) sortedMinimizers[i];
+					}
+				} else {
+					bitmapContainers[c] = new long[1024];
+					for(int i = start; i < end; i++) {
+						int low = sortedMinimizers[i] & 0xFFFF;
+						bitmapContainers[c][low >>> 6] |= 1L << low;
+					}
+				}
+				start = end;
+			}
+		}
+
+		@Override
+		public boolean contains(long minimizer) {
+			if(minimizer != (int) minimizer) {
+				return false;
+			}
+			int c = Arrays.binarySearch(keys, (char) (minimizer >>> 16));
+			if(c < 0) {
+				return false;
+			}
+			int low = (int) minimizer & 0xFFFF;
+			if(bitmapContainers[c] != null) {
+				return (bitmapContainers[c][low >>> 6] & (1L << low)) != 0;
+			}
+			return Arrays.binarySearch(arrayContainers[c], (char) low) >= 0;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public LongIterator longIterator() { //Ascending order
+			return new LongIterator() {
+				private int container = 0;
+				private int position = 0; //Index in an array container, or next bit to look at in a bitmap container
+				private int returned = 0;
+
+				@Override
+				public long next() {
+					while(true) {
+						int high = keys[container] << 16;
+						if(arrayContainers[container] != null) {
+							if(position < arrayContainers[container].length) {
+								returned++;
+								return high | arrayContainers[container][position++];
+							}
+						} else {
+							long[] bitmap = bitmapContainers[container];
+							while(position < 65536) {
+								long word = bitmap[position >>> 6] >>> position;
+								if(word != 0) {
+									position += Long.numberOfTrailingZeros(word);
+									returned++;
+									return high | position++;
+								}
+								position = (position | 63) + 1;
+							}
+						}
+						container++;
+						position = 0;
+					}
+				}
+
+				@Override
+				public boolean hasNext() {
+					return returned < size;
+				}
+			};
+		}
+
+		@Override
+		public long getResidentBytes() {
+			long bytes = 2L * keys.length + 16L * keys.length + 48;
+			for(int c = 0; c < keys.length; c++) {
+				bytes += (bitmapContainers[c] != null) ? 8L * 1024 + 16 : 2L * arrayContainers[c].length + 16;
+			}
+			return bytes;
+		}
+	}
+
+	public static class CountFile {
+		public int k; //0 if unknown (text count files don't record it)
+		public int w; //Window size in k-mers, 0 if unknown
+		public int ordering = -1; //MNBC_minimizer.ALPHABETICAL or HASH, -1 if unknown
+		public long kmerTotalCount;
+		public int[] minimizers; //Ascending for binary count files
+		public long[] longMinimizers; //Instead of minimizers when k is over 15
+
+		public int size() {
+			return (longMinimizers != null) ? longMinimizers.length : minimizers.length;
+		}
+
+		public void sort() {
+			if(longMinimizers != null) {
+				Arrays.sort(longMinimizers);
+			} else {
+				Arrays.sort(minimizers);
+			}
+		}
+	}
+
+	public static boolean isCountFile(String filename) {
+		return filename.endsWith(TEXT_SUFFIX) || filename.endsWith(BINARY_SUFFIX);
+	}
+
+	public static String getGenomeId(String filename) { //Example: GCF_000834455.1_ASM83445v1_genomic_count.gz -> GCF_000834455.1
+		String[] fields = filename.split("_");
+		return fields[0] + "_" + fields[1];
+	}
+
+	public static CountFile readCountFile(File countFile, int k) throws IOException { //Binary count files record their own k
+		return countFile.getName().endsWith(BINARY_SUFFIX) ? readBinaryCountFile(countFile) : readTextCountFile(countFile, k);
+	}
+
+	public static CountFile readTextCountFile(File countFile, int k) throws IOException {
+		CountFile content = new CountFile();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(MNBC_gzip.open(countFile, false), "UTF-8"));
+		String line = reader.readLine();
+		content.kmerTotalCount = Long.parseLong(line);
+		if(MNBC_minimizer.isLong(k)) {
+			MutableLongList minimizers = new LongArrayList();
+			while((line = reader.readLine()) != null) {
+				minimizers.add(Long.parseLong(line));
+			}
+			content.longMinimizers = minimizers.toArray();
+		} else {
+			MutableIntList minimizers = new IntArrayList();
+			while((line = reader.readLine()) != null) {
+				minimizers.add(Integer.parseInt(line));
+			}
+			content.minimizers = minimizers.toArray();
+		}
+		reader.close();
+
+		return content;
+	}
+
+	public static CountFile readBinaryCountFile(File countFile) throws IOException {
+		byte[] bytes = Files.readAllBytes(countFile.toPath());
+		if(bytes.length < MIN_LENGTH) {
+			throw new IOException("Truncated count file " + countFile);
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		CRC32 checksum = new CRC32();
+		checksum.update(bytes, 0, bytes.length - 4);
+		if((int) checksum.getValue() != buffer.getInt(bytes.length - 4)) {
+			throw new IOException("Checksum mismatch in count file " + countFile);
+		}
+		if(buffer.getInt() != MAGIC) {
+			throw new IOException("Not an MNBC binary count file: " + countFile);
+		}
+		int version = buffer.getInt();
+		if(version > VERSION) {
+			throw new IOException("Count file " + countFile + " has unsupported version " + version);
+		}
+
+		CountFile content = new CountFile();
+		content.k = buffer.getInt();
+		content.w = (version >= 2) ? buffer.getInt() : content.k;
+		content.ordering = (version >= 3) ? buffer.getInt() : MNBC_minimizer.ALPHABETICAL;
+		if(content.ordering < 0 || content.ordering >= MNBC_minimizer.ORDERING_NAMES.length) {
+			throw new IOException("Count file " + countFile + " has unsupported k-mer ordering " + content.ordering);
+		}
+		content.kmerTotalCount = buffer.getLong();
+		int numberOfMinimizers = buffer.getInt();
+		if(buffer.position() > bytes.length - 4) { //Newer header over the checksum
+			throw new IOException("Truncated count file " + countFile);
+		}
+		boolean isLong = MNBC_minimizer.isLong(content.k);
+		if(isLong) {
+			content.longMinimizers = new long[numberOfMinimizers];
+		} else {
+			content.minimizers = new int[numberOfMinimizers];
+		}
+
+		int position = buffer.position();
+		int end = bytes.length - 4;
+		long minimizer = 0;
+		for(int i = 0; i < numberOfMinimizers; i++) {
+			long gap = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if(position >= end) {
+					throw new IOException("Truncated count file " + countFile);
+				}
+				b = bytes[position++];
+				gap |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while(b < 0);
+			minimizer += gap;
+			if(isLong) {
+				content.longMinimizers[i] = minimizer;
+			} else {
+				content.minimizers[i] = (int) minimizer;
+			}
+		}
+
+		return content;
+	}
+
+	public static void writeBinaryCountFile(File countFile, int k, int w, int ordering, long kmerTotalCount, int[] sortedMinimizers) throws IOException {
+		CheckedOutputStream checkedStream = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(countFile), 1 << 16), new CRC32());
+		DataOutputStream out = writeHeader(checkedStream, k, w, ordering, kmerTotalCount, sortedMinimizers.length);
+		int previous = 0;
+		for(int minimizer : sortedMinimizers) {
+			writeVarint(out, minimizer - previous);
+			previous = minimizer;
+		}
+
+		out.flush();
+		out.writeInt((int) checkedStream.getChecksum().getValue());
+		out.close();
+	}
+
+	public static void writeBinaryCountFile(File countFile, int k, int w, int ordering, long kmerTotalCount, long[] sortedMinimizers) throws IOException {
+		CheckedOutputStream checkedStream = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(countFile), 1 << 16), new CRC32());
+		DataOutputStream out = writeHeader(checkedStream, k, w, ordering, kmerTotalCount, sortedMinimizers.length);
+		long previous = 0;
+		for(long minimizer : sortedMinimizers) {
+			writeVarint(out, minimizer - previous);
+			previous = minimizer;
+		}
+
+		out.flush();
+		out.writeInt((int) checkedStream.getChecksum().getValue());
+		out.close();
+	}
+
+	private static DataOutputStream writeHeader(CheckedOutputStream checkedStream, int k, int w, int ordering, long kmerTotalCount, int numberOfMinimizers) throws IOException {
+		DataOutputStream out = new DataOutputStream(checkedStream);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(k);
+		out.writeInt(w);
+		out.writeInt(ordering);
+		out.writeLong(kmerTotalCount);
+		out.writeInt(numberOfMinimizers);
+		return out;
+	}
+
+	private static void writeVarint(DataOutputStream out, long gap) throws IOException {
+		while((gap & ~0x7FL) != 0) {
+			out.write((int) (gap & 0x7F) | 0x80);
+			gap >>>= 7;
+		}
+		out.write((int) gap);
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ *
+ * @author Ruipeng Lu (ruipeng.lu@inspection.gc.ca)
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.eclipse.collections.api.map.primitive.MutableLongIntMap;
+import org.eclipse.collections.api.set.primitive.MutableLongSet;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+
+public class MNBC_frequency { //Document frequency table of a database: the number of genomes containing each of its near-ubiquitous minimizers
+	public static final String FILENAME = "minimizer_df.tsv";
+	public static final double MIN_FRACTION = 0.9; //Minimizers in at least this fraction of the genomes are listed
+	private static final String HEADER_PREFIX = "#MNBC minimizer document frequencies\t";
+	private static int k = 15;
+	private static String dbDirPath;
+
+	//Reads every count file of the database, so it is a step of its own, run once the database is complete rather than by every build or update
+	public static void execute(String[] args) {
+		if(args.length == 1) {
+			printHelpInfo();
+			System.exit(0);
+		}
+
+		for(int i = 1; i < args.length; i++) {
+			if(args[i].startsWith("-")) {
+				switch(args[i].charAt(1)) {
+					case 'd':
+						dbDirPath = args[i + 1];
+						break;
+					case 'k':
+						k = Integer.parseInt(args[i + 1]);
+						break;
+					case 'h':
+						printHelpInfo();
+						System.exit(0);
+				}
+			}
+		}
+
+		if((k <= 0) || (k > MNBC_minimizer.MAX_K) || (dbDirPath == null) || !new File(dbDirPath).isDirectory()) {
+			System.out.println("Error: not all required parameters are correctly set -- Run 'MNBC frequency -h' for help");
+			System.exit(0);
+		}
+
+		long startTime = System.nanoTime();
+		File dbDir = new File(dbDirPath);
+		try {
+			String parameters = MNBC_manifest.readParameters(dbDir);
+			if(parameters != null) { //The k the database was built with, overriding -k
+				for(String parameter : parameters.split(" ")) {
+					if(parameter.startsWith("k=")) {
+						k = Integer.parseInt(parameter.substring(2));
+					}
+				}
+			}
+			write(dbDir, k);
+		} catch(Exception e) {
+			System.out.println("ERROR: failed writing the minimizer document frequency table of " + dbDirPath + ", exiting");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		long endTime = System.nanoTime();
+		System.out.println("done in " + ((endTime - startTime) / 1000000000) + " seconds");
+	}
+
+	//Table layout: a header line with the number of genomes, the least frequency listed and the CRC32 of the sorted genome IDs (tying the table
+	//to the genomes it was computed from), then one line per minimizer with its number of genomes, in ascending minimizer order
+	public static void write(File dbDir, int k) throws IOException {
+		File[] countFiles = dbDir.listFiles((dir, name) -> MNBC_db.isCountFile(name));
+		Arrays.sort(countFiles);
+		String[] genomeIds = new String[countFiles.length];
+		for(int i = 0; i < countFiles.length; i++) {
+			genomeIds[i] = MNBC_db.getGenomeId(countFiles[i].getName());
+		}
+		int minFrequency = getMinFrequency(MIN_FRACTION, countFiles.length);
+
+		//A minimizer in minFrequency genomes is in at least one of any countFiles.length - minFrequency + 1 of them, so only the minimizers of
+		//those first genomes are counted, keeping the map far smaller than the union of the database
+		MutableLongIntMap minimizer2Frequency = new LongIntHashMap();
+		for(int i = 0; i < countFiles.length; i++) {
+			MNBC_db.CountFile content = MNBC_db.readCountFile(countFiles[i], k);
+			boolean isCandidate = i <= countFiles.length - minFrequency;
+			for(int j = 0; j < content.size(); j++) {
+				long minimizer = (content.longMinimizers != null) ? content.longMinimizers[j] : content.minimizers[j];
+				if(isCandidate) {
+					minimizer2Frequency.addToValue(minimizer, 1);
+				} else if(minimizer2Frequency.containsKey(minimizer)) {
+					minimizer2Frequency.addToValue(minimizer, 1);
+				}
+			}
+		}
+
+		long[] minimizers = minimizer2Frequency.select((minimizer, frequency) -> frequency >= minFrequency).keysView().toSortedArray();
+		File tempFile = new File(dbDir, FILENAME + MNBC_manifest.TEMP_SUFFIX);
+		PrintWriter writer = new PrintWriter(tempFile, "UTF-8");
+		writer.print(HEADER_PREFIX + "genomes=" + countFiles.length + " min_df=" + minFrequency + " checksum=" + getChecksum(genomeIds) + "\n");
+		for(long minimizer : minimizers) {
+			writer.print(minimizer + "\t" + minimizer2Frequency.get(minimizer) + "\n");
+		}
+		writer.close();
+		if(writer.checkError()) {
+			throw new IOException("Failed writing " + tempFile);
+		}
+		MNBC_manifest.commit(tempFile, new File(dbDir, FILENAME));
+		System.out.println("Wrote " + minimizers.length + " minimizers present in at least " + minFrequency + " of " + countFiles.length + " genomes to " + FILENAME);
+	}
+
+	//Minimizers of the table in at least the given fraction of the genomes. The table must have been computed from exactly these genomes,
+	//and list all minimizers of that frequency
+	public static MutableLongSet read(File tableFile, String[] genomeIds, double fraction) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(tableFile, StandardCharsets.UTF_8));
+		String line = reader.readLine();
+		if(line == null || !line.startsWith(HEADER_PREFIX)) {
+			reader.close();
+			throw new IOException("Not an MNBC minimizer document frequency table: " + tableFile);
+		}
+		String expected = "genomes=" + genomeIds.length + " ";
+		String checksum = " checksum=" + getChecksum(genomeIds);
+		String parameters = line.substring(HEADER_PREFIX.length());
+		if(!parameters.startsWith(expected) || !parameters.endsWith(checksum)) {
+			reader.close();
+			throw new IOException("Table " + tableFile + " was computed from other genomes than those of the database (" + parameters + "), rerun 'MNBC frequency' after building or updating the database");
+		}
+		int tableMinFrequency = Integer.parseInt(parameters.substring(expected.length() + "min_df=".length(), parameters.length() - checksum.length()));
+		int minFrequency = getMinFrequency(fraction, genomeIds.length);
+		if(minFrequency < tableMinFrequency) {
+			reader.close();
+			throw new IOException("Table " + tableFile + " only lists minimizers in at least " + tableMinFrequency + " of the " + genomeIds.length + " genomes");
+		}
+
+		MutableLongSet minimizers = new LongHashSet();
+		while((line = reader.readLine()) != null) {
+			int tab = line.indexOf('\t');
+			if(Integer.parseInt(line.substring(tab + 1)) >= minFrequency) {
+				minimizers.add(Long.parseLong(line.substring(0, tab)));
+			}
+		}
+		reader.close();
+		return minimizers;
+	}
+
+	public static int getMinFrequency(double fraction, int numberOfGenomes) { //Least number of genomes making up the fraction, tolerating rounding
+		return Math.max(1, (int) Math.ceil(fraction * numberOfGenomes - 1e-6));
+	}
+
+	private static void printHelpInfo() {
+		System.out.println("This MNBC_frequency tool (v1.2) writes the minimizer document frequency table of a database directory, used by '-x' of classify.");
+		System.out.println("-h:	Show this help menu");
+		System.out.println("-d:	Database directory (containing text _count.gz or binary _count.bin files). The table lists the minimizers found in at least 90% of its genomes, with their number of genomes, in " + FILENAME + " of the directory. Run it again after building or updating the database, as classify rejects a table computed from other genomes");
+		System.out.println("-k (optional):	K-mer length the database was built with, only needed for a directory without manifest.tsv (default 15)");
+	}
+
+	private static long getChecksum(String[] genomeIds) { //Independent of the order of the genomes
+		String[] sortedIds = genomeIds.clone();
+		Arrays.sort(sortedIds);
+		CRC32 checksum = new CRC32();
+		for(String genomeId : sortedIds) {
+			checksum.update((genomeId + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		return checksum.getValue();
+	}
+}
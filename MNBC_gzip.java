@@ -0,0 +1,544 @@
+/**
+ *
+ * @author Ruipeng Lu (ruipeng.lu@inspection.gc.ca)
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+public class MNBC_gzip { //Decompression of (gzipped) input files off the reading thread, and compression of output files
+	private static final int CHUNK_SIZE = 1 << 20;
+	private static final int BGZF_HEADER_LENGTH = 18;
+	private static final int BGZF_BLOCK_SIZE = 0xFF00; //Uncompressed bytes per written BGZF block, as in bgzip, so a compressed block always fits in 64 KB
+	private static final int GZIP_MEMBER_SIZE = 1 << 20; //Uncompressed bytes per written gzip member
+	private static final byte[] BGZF_EOF_BLOCK = {0x1F, (byte) 0x8B, 8, 4, 0, 0, 0, 0, 0, (byte) 0xFF, 6, 0, 'B', 'C', 2, 0, 0x1B, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+	public static final String NONE = "none";
+	public static final String GZIP = "gzip";
+	public static final String BGZF = "bgzf";
+	private static ExecutorService workers; //Shared by all BGZF inputs and compressed outputs, created on first use
+
+	//Opens a plain, gzipped or BGZF (blocked gzip, as written by bgzip) file, recognized by its first bytes rather than its name.
+	//BGZF blocks are inflated in parallel. A plain gzip file is inflated by a dedicated read-ahead thread if readAhead is set,
+	//which is worth it for one large file but not for many small files that are already read in parallel.
+	public static InputStream open(File file, boolean readAhead) throws IOException {
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		in.mark(BGZF_HEADER_LENGTH);
+		byte[] header = new byte[BGZF_HEADER_LENGTH];
+		int headerLength = in.readNBytes(header, 0, BGZF_HEADER_LENGTH);
+		in.reset();
+
+		if(headerLength < 2 || (header[0] & 0xFF) != 0x1F || (header[1] & 0xFF) != 0x8B) {
+			return in;
+		}
+		if(isBgzfHeader(header, headerLength)) {
+			return new BgzfInputStream(in);
+		}
+		if(readAhead) {
+			return new ReadAheadInputStream(new GZIPInputStream(in, 1 << 16), file.getName());
+		}
+		return new GZIPInputStream(in, 1 << 16);
+	}
+
+	private static boolean isBgzfHeader(byte[] header, int headerLength) { //Gzip header with FEXTRA holding the 'BC' subfield of length 2
+		return headerLength == BGZF_HEADER_LENGTH && header[2] == 8 && (header[3] & 4) != 0
+				&& (header[10] & 0xFF) == 6 && header[11] == 0 && header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+	}
+
+	public static boolean isCompressed(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		boolean compressed = (in.read() == 0x1F) && (in.read() == 0x8B);
+		in.close();
+		return compressed;
+	}
+
+	//Creates a plain, gzip or BGZF output file, written in large blocks. Compressed output is cut into independent gzip members
+	//(BGZF blocks, or 1 MB gzip members) deflated in parallel, ending at line breaks where possible, so if the writing process is killed
+	//everything up to the last complete member stays readable (see truncateToCompleteMembers). Any gzip reader reads the concatenated members.
+	public static OutputStream create(File file, boolean append, String compression) throws IOException {
+		OutputStream out = new FileOutputStream(file, append);
+		if(compression.equals(BGZF)) {
+			return new MemberOutputStream(out, BGZF_BLOCK_SIZE, true);
+		}
+		if(compression.equals(GZIP)) {
+			return new MemberOutputStream(out, GZIP_MEMBER_SIZE, false);
+		}
+		return new BufferedOutputStream(out, 1 << 20);
+	}
+
+	//Cuts a compressed file after its last complete non-empty gzip member, dropping a member left incomplete by a killed writer
+	//and the empty BGZF end-of-file block, so that more members can be appended. Returns the number of bytes cut.
+	public static long truncateToCompleteMembers(File file) throws IOException {
+		MemberScanner scanner = new MemberScanner(new FileInputStream(file));
+		long completeLength = 0;
+		try {
+			long memberLength;
+			while((memberLength = scanner.nextMember()) >= 0) {
+				if(memberLength > 0) {
+					completeLength = scanner.getPosition();
+				}
+			}
+		} catch(EOFException | DataFormatException e) {
+			//Incomplete or corrupted member, everything after the last complete one is cut
+		} finally {
+			scanner.close();
+		}
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		long cut = randomAccessFile.length() - completeLength;
+		randomAccessFile.setLength(completeLength);
+		randomAccessFile.close();
+		return cut;
+	}
+
+	private static synchronized ExecutorService getWorkers() {
+		if(workers == null) {
+			workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+				Thread thread = new Thread(runnable, "Gzip worker");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return workers;
+	}
+
+	private static class BgzfInputStream extends InputStream { //Reads compressed blocks in order and keeps several of them inflating at once
+		private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+		private InputStream in;
+		private ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<Future<byte[]>>();
+		private int maxPendingBlocks = 2 * Runtime.getRuntime().availableProcessors();
+		private boolean endOfFile;
+		private byte[] block = new byte[0];
+		private int position;
+
+		public BgzfInputStream(InputStream anInputStream) {
+			in = anInputStream;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(!ensureData()) {
+				return -1;
+			}
+			return block[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if(length == 0) {
+				return 0;
+			}
+			if(!ensureData()) {
+				return -1;
+			}
+			int count = Math.min(length, block.length - position);
+			System.arraycopy(block, position, buffer, offset, count);
+			position += count;
+			return count;
+		}
+
+		private boolean ensureData() throws IOException {
+			while(position == block.length) {
+				while(!endOfFile && pendingBlocks.size() < maxPendingBlocks) {
+					submitNextBlock();
+				}
+				if(pendingBlocks.isEmpty()) {
+					return false;
+				}
+
+				try {
+					block = pendingBlocks.poll().get();
+				} catch(InterruptedException e) {
+					throw new IOException(e);
+				} catch(ExecutionException e) {
+					throw new IOException("Corrupted BGZF block", e.getCause());
+				}
+				position = 0;
+			}
+			return true;
+		}
+
+		private void submitNextBlock() throws IOException {
+			byte[] header = new byte[BGZF_HEADER_LENGTH];
+			int headerLength = in.readNBytes(header, 0, BGZF_HEADER_LENGTH);
+			if(headerLength == 0) {
+				endOfFile = true;
+				return;
+			}
+			if(!isBgzfHeader(header, headerLength)) {
+				throw new IOException("Invalid BGZF block header");
+			}
+
+			int blockSize = ((header[16] & 0xFF) | ((header[17] & 0xFF) << 8)) + 1;
+			byte[] compressed = new byte[blockSize - BGZF_HEADER_LENGTH];
+			if(in.readNBytes(compressed, 0, compressed.length) != compressed.length) {
+				throw new EOFException("Truncated BGZF block");
+			}
+			pendingBlocks.add(getWorkers().submit(() -> inflate(compressed)));
+		}
+
+		private static byte[] inflate(byte[] compressed) throws DataFormatException, IOException { //compressed holds the deflate data, then CRC32 and ISIZE
+			int trailer = compressed.length - 8;
+			int expectedCrc = (compressed[trailer] & 0xFF) | ((compressed[trailer + 1] & 0xFF) << 8) | ((compressed[trailer + 2] & 0xFF) << 16) | ((compressed[trailer + 3] & 0xFF) << 24);
+			int size = (compressed[trailer + 4] & 0xFF) | ((compressed[trailer + 5] & 0xFF) << 8) | ((compressed[trailer + 6] & 0xFF) << 16) | ((compressed[trailer + 7] & 0xFF) << 24);
+
+			byte[] data = new byte[size];
+			Inflater inflater = INFLATER.get();
+			inflater.reset();
+			inflater.setInput(compressed, 0, trailer);
+			int inflated = 0;
+			while(inflated < size && !inflater.finished()) {
+				int count = inflater.inflate(data, inflated, size - inflated);
+				if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += count;
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, inflated);
+			if(inflated != size || (int) crc.getValue() != expectedCrc) {
+				throw new IOException("BGZF block checksum or size mismatch");
+			}
+			return data;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for(Future<byte[]> pendingBlock : pendingBlocks) {
+				pendingBlock.cancel(false);
+			}
+			in.close();
+		}
+	}
+
+	private static class ReadAheadInputStream extends InputStream { //A dedicated thread inflates plain gzip ahead of the reader
+		private static final byte[] END_OF_STREAM = new byte[0];
+
+		private BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(4);
+		private volatile IOException failure;
+		private volatile boolean closed;
+		private Thread inflaterThread;
+		private byte[] chunk = new byte[0];
+		private int chunkLength;
+		private int position;
+		private boolean endOfStream;
+
+		public ReadAheadInputStream(InputStream in, String name) {
+			inflaterThread = new Thread(() -> {
+				try {
+					while(!closed) {
+						byte[] data = new byte[CHUNK_SIZE];
+						int length = in.readNBytes(data, 0, CHUNK_SIZE);
+						if(length == 0) {
+							break;
+						}
+						chunks.put((length == CHUNK_SIZE) ? data : Arrays.copyOf(data, length));
+					}
+				} catch(IOException e) {
+					failure = e;
+				} catch(InterruptedException e) {
+					//Closed by the reader
+				} finally {
+					try {
+						in.close();
+						if(!closed) {
+							chunks.put(END_OF_STREAM);
+						}
+					} catch(IOException | InterruptedException e) {
+						//Nothing more to read anyway
+					}
+				}
+			}, "Gzip read-ahead " + name);
+			inflaterThread.setDaemon(true);
+			inflaterThread.start();
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(!ensureData()) {
+				return -1;
+			}
+			return chunk[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if(length == 0) {
+				return 0;
+			}
+			if(!ensureData()) {
+				return -1;
+			}
+			int count = Math.min(length, chunkLength - position);
+			System.arraycopy(chunk, position, buffer, offset, count);
+			position += count;
+			return count;
+		}
+
+		private boolean ensureData() throws IOException {
+			while(position == chunkLength) {
+				if(endOfStream) {
+					return false;
+				}
+				try {
+					chunk = chunks.take();
+				} catch(InterruptedException e) {
+					throw new IOException(e);
+				}
+				if(chunk == END_OF_STREAM) {
+					endOfStream = true;
+					if(failure != null) {
+						throw failure;
+					}
+				}
+				chunkLength = chunk.length;
+				position = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			inflaterThread.interrupt();
+		}
+	}
+
+	private static class MemberOutputStream extends OutputStream { //Buffers whole members, deflates several of them at once and writes them in order
+		private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+		private OutputStream out;
+		private int memberSize;
+		private boolean bgzf;
+		private byte[] buffer;
+		private int length;
+		private ArrayDeque<Future<byte[]>> pendingMembers = new ArrayDeque<Future<byte[]>>();
+		private int maxPendingMembers = 2 * Runtime.getRuntime().availableProcessors();
+
+		public MemberOutputStream(OutputStream anOutputStream, int aMemberSize, boolean isBgzf) {
+			out = anOutputStream;
+			memberSize = aMemberSize;
+			bgzf = isBgzf;
+			buffer = new byte[memberSize];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int count) throws IOException {
+			while(count > 0) {
+				int copied = Math.min(count, memberSize - length);
+				System.arraycopy(bytes, offset, buffer, length, copied);
+				length += copied;
+				offset += copied;
+				count -= copied;
+				if(length == memberSize) {
+					int end = length;
+					while(end > 0 && buffer[end - 1] != '\n') {
+						end--;
+					}
+					submitMember((end == 0) ? length : end);
+				}
+			}
+		}
+
+		private void submitMember(int end) throws IOException { //Deflates buffer[0, end) as one member and keeps the rest for the next one
+			byte[] data = buffer;
+			buffer = new byte[memberSize];
+			length -= end;
+			System.arraycopy(data, end, buffer, 0, length);
+
+			if(pendingMembers.size() == maxPendingMembers) {
+				writeOldestMember();
+			}
+			pendingMembers.add(getWorkers().submit(() -> deflate(data, end, bgzf)));
+		}
+
+		private void writeOldestMember() throws IOException {
+			try {
+				out.write(pendingMembers.poll().get());
+			} catch(InterruptedException | ExecutionException e) {
+				throw new IOException("Failed compressing output", e);
+			}
+		}
+
+		private static byte[] deflate(byte[] data, int size, boolean bgzf) {
+			int headerLength = bgzf ? BGZF_HEADER_LENGTH : 10;
+			byte[] member = new byte[headerLength + size + size / 1000 + 64 + 8]; //Deflate never expands data by more than a few bytes per 16 KB
+			member[0] = 0x1F;
+			member[1] = (byte) 0x8B;
+			member[2] = 8;
+			member[9] = (byte) 0xFF; //Unknown OS
+			if(bgzf) {
+				member[3] = 4; //FEXTRA
+				member[10] = 6;
+				member[12] = 'B';
+				member[13] = 'C';
+				member[14] = 2;
+			}
+
+			Deflater deflater = DEFLATER.get();
+			deflater.reset();
+			deflater.setInput(data, 0, size);
+			deflater.finish();
+			int position = headerLength;
+			while(!deflater.finished()) {
+				if(position == member.length - 8) {
+					member = Arrays.copyOf(member, 2 * member.length);
+				}
+				position += deflater.deflate(member, position, member.length - 8 - position);
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, size);
+			writeIntLE(member, position, (int) crc.getValue());
+			writeIntLE(member, position + 4, size);
+			int memberLength = position + 8;
+			if(bgzf) {
+				member[16] = (byte) (memberLength - 1);
+				member[17] = (byte) ((memberLength - 1) >>> 8);
+			}
+			return Arrays.copyOf(member, memberLength);
+		}
+
+		private static void writeIntLE(byte[] bytes, int position, int value) {
+			bytes[position] = (byte) value;
+			bytes[position + 1] = (byte) (value >>> 8);
+			bytes[position + 2] = (byte) (value >>> 16);
+			bytes[position + 3] = (byte) (value >>> 24);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(length > 0) {
+				submitMember(length);
+			}
+			while(!pendingMembers.isEmpty()) {
+				writeOldestMember();
+			}
+			if(bgzf) {
+				out.write(BGZF_EOF_BLOCK);
+			}
+			out.close();
+		}
+	}
+
+	private static class MemberScanner { //Walks through the gzip members of a stream, keeping track of the byte position
+		private InputStream in;
+		private byte[] buffer = new byte[1 << 16];
+		private int position;
+		private int limit;
+		private long bufferOffset; //File position of buffer[0]
+		private Inflater inflater = new Inflater(true);
+		private byte[] output = new byte[1 << 16];
+
+		public MemberScanner(InputStream anInputStream) {
+			in = anInputStream;
+		}
+
+		public long getPosition() {
+			return bufferOffset + position;
+		}
+
+		private boolean fill() throws IOException {
+			bufferOffset += limit;
+			position = 0;
+			limit = Math.max(0, in.read(buffer));
+			return limit > 0;
+		}
+
+		private int readByte() throws IOException {
+			if(position == limit && !fill()) {
+				throw new EOFException();
+			}
+			return buffer[position++] & 0xFF;
+		}
+
+		private void skip(int count) throws IOException {
+			for(int i = 0; i < count; i++) {
+				readByte();
+			}
+		}
+
+		public long nextMember() throws IOException, DataFormatException { //Uncompressed length of the next complete member, -1 at end of file
+			if(position == limit && !fill()) {
+				return -1;
+			}
+			if(readByte() != 0x1F || readByte() != 0x8B || readByte() != 8) {
+				throw new DataFormatException("Not a gzip member");
+			}
+			int flags = readByte();
+			skip(6);
+			if((flags & 4) != 0) { //FEXTRA
+				skip(readByte() | (readByte() << 8));
+			}
+			if((flags & 8) != 0) { //FNAME
+				while(readByte() != 0);
+			}
+			if((flags & 16) != 0) { //FCOMMENT
+				while(readByte() != 0);
+			}
+			if((flags & 2) != 0) { //FHCRC
+				skip(2);
+			}
+
+			inflater.reset();
+			CRC32 crc = new CRC32();
+			long size = 0;
+			while(!inflater.finished()) {
+				if(inflater.needsInput()) {
+					if(position == limit && !fill()) {
+						throw new EOFException();
+					}
+					inflater.setInput(buffer, position, limit - position);
+					position = limit;
+				}
+				int count = inflater.inflate(output);
+				crc.update(output, 0, count);
+				size += count;
+				if(count == 0 && inflater.needsDictionary()) {
+					throw new DataFormatException("Unsupported gzip member");
+				}
+			}
+			position = limit - inflater.getRemaining();
+
+			int expectedCrc = readByte() | (readByte() << 8) | (readByte() << 16) | (readByte() << 24);
+			int expectedSize = readByte() | (readByte() << 8) | (readByte() << 16) | (readByte() << 24);
+			if(expectedCrc != (int) crc.getValue() || expectedSize != (int) size) {
+				throw new DataFormatException("Gzip member checksum or size mismatch");
+			}
+			return size;
+		}
+
+		public void close() throws IOException {
+			inflater.end();
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ *
+ * @author Ruipeng Lu (ruipeng.lu@inspection.gc.ca)
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+public class MNBC_manifest { //Journal of the genomes built into a database directory, so an interrupted build resumes exactly where it stopped
+	public static final String FILENAME = "manifest.tsv";
+	public static final String TEMP_SUFFIX = ".tmp"; //Count files being written, renamed once complete
+	public static final String NO_COUNT_FILE = "-"; //Genomes whose chromosomes were all filtered out
+	private static final String REMOVED = "removed"; //Second field of the line of a genome removed by update
+	private static final String HEADER_PREFIX = "#MNBC manifest\t";
+
+	//Manifest layout: a header line with the build parameters, then one line per completed genome, appended once its count file is in place
+	//(a later line for the same genome replaces an earlier one), or per genome removed by update (genome and "removed"). Only lines ending
+	//with a newline count, a line cut short by a killed build is dropped when the manifest is next opened
+	public static class Entry {
+		public final String genome; //Genome file name
+		public final long genomeBytes;
+		public final long genomeChecksum; //CRC32 of the decompressed genome file
+		public final String countFile; //Count file name, or NO_COUNT_FILE
+		public final long countFileBytes;
+		public final long numberOfMinimizers;
+		public final long kmerTotalCount;
+
+		public Entry(String aGenome, long someGenomeBytes, long aGenomeChecksum, String aCountFile, long someCountFileBytes, long aNumberOfMinimizers, long aKmerTotalCount) {
+			genome = aGenome;
+			genomeBytes = someGenomeBytes;
+			genomeChecksum = aGenomeChecksum;
+			countFile = aCountFile;
+			countFileBytes = someCountFileBytes;
+			numberOfMinimizers = aNumberOfMinimizers;
+			kmerTotalCount = aKmerTotalCount;
+		}
+
+		private static Entry parse(String line) { //Null if malformed
+			String[] fields = line.split("\t");
+			if(fields.length != 7) {
+				return null;
+			}
+			try {
+				return new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3], Long.parseLong(fields[4]), Long.parseLong(fields[5]), Long.parseLong(fields[6]));
+			} catch(NumberFormatException e) {
+				return null;
+			}
+		}
+
+		String toLine() {
+			return genome + "\t" + genomeBytes + "\t" + genomeChecksum + "\t" + countFile + "\t" + countFileBytes + "\t" + numberOfMinimizers + "\t" + kmerTotalCount + "\n";
+		}
+	}
+
+	private final File dbDir;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private FileOutputStream journal;
+
+	//Opens the manifest of a database directory, creating it if there is none. The parameters (k, w, ordering, length filter and format)
+	//must be the same as those the directory was built with, so a resumed build never mixes count files of different settings
+	public MNBC_manifest(File aDbDir, String parameters) throws IOException {
+		dbDir = aDbDir;
+		File file = new File(dbDir, FILENAME);
+		String header = HEADER_PREFIX + parameters + "\n";
+		long length = file.length(); //Up to the end of the last complete line
+		if(length > 0) {
+			String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			if(!content.startsWith(header)) {
+				String firstLine = content.split("\n", 2)[0];
+				throw new IOException("Manifest " + file + " was built with " + firstLine.substring(Math.min(firstLine.length(), HEADER_PREFIX.length())) + ", not " + parameters);
+			}
+			int lineStart = header.length();
+			for(int lineEnd; (lineEnd = content.indexOf('\n', lineStart)) >= 0; lineStart = lineEnd + 1) {
+				String line = content.substring(lineStart, lineEnd);
+				if(line.endsWith("\t" + REMOVED)) {
+					entries.remove(line.substring(0, line.length() - REMOVED.length() - 1));
+					continue;
+				}
+				Entry entry = Entry.parse(line);
+				if(entry != null) {
+					entries.put(entry.genome, entry);
+				}
+			}
+			length = content.substring(0, lineStart).getBytes(StandardCharsets.UTF_8).length;
+		}
+
+		if(length < file.length()) {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+			channel.truncate(length);
+			channel.close();
+		}
+		journal = new FileOutputStream(file, true);
+		if(length == 0) {
+			append(header);
+		}
+	}
+
+	//Parameters the database directory was built with, as given to the constructor by build, or null if it has no manifest
+	public static String readParameters(File dbDir) throws IOException {
+		File file = new File(dbDir, FILENAME);
+		if(!file.exists()) {
+			return null;
+		}
+		String firstLine = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).split("\n", 2)[0];
+		if(!firstLine.startsWith(HEADER_PREFIX)) {
+			throw new IOException("Not an MNBC manifest: " + file);
+		}
+		return firstLine.substring(HEADER_PREFIX.length());
+	}
+
+	public Collection<Entry> getEntries() {
+		return entries.values();
+	}
+
+	public Entry getEntry(String genome) {
+		return entries.get(genome);
+	}
+
+	//Whether the genome was completed with its file as it is now: same size, and the count file still there with the size it was written with.
+	//Only file sizes are compared, so checking a whole database reads nothing
+	public boolean isComplete(File genomeFile) {
+		Entry entry = entries.get(genomeFile.getName());
+		if(entry == null || entry.genomeBytes != genomeFile.length()) {
+			return false;
+		}
+		return entry.countFile.equals(NO_COUNT_FILE) || new File(dbDir, entry.countFile).length() == entry.countFileBytes;
+	}
+
+	public synchronized void add(Entry entry) throws IOException { //Journals a genome once its count file is committed
+		append(entry.toLine());
+		entries.put(entry.genome, entry);
+	}
+
+	public synchronized void remove(String genome) throws IOException { //Journals a genome once its count file is deleted
+		append(genome + "\t" + REMOVED + "\n");
+		entries.remove(genome);
+	}
+
+	private void append(String text) throws IOException {
+		journal.write(text.getBytes(StandardCharsets.UTF_8));
+		journal.getFD().sync();
+	}
+
+	public synchronized void close() throws IOException {
+		journal.close();
+	}
+
+	//Moves a fully written file from its temporary name to its final one in a single step, so a killed build never leaves a truncated count file
+	public static void commit(File tempFile, File target) throws IOException {
+		FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE);
+		channel.force(true);
+		channel.close();
+		Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+}
@@ -0,0 +1,262 @@
+/**
+ *
+ * @author Ruipeng Lu (ruipeng.lu@inspection.gc.ca)
+ *
+ */
+
+import java.util.Arrays;
+
+import org.eclipse.collections.api.collection.primitive.MutableIntCollection;
+import org.eclipse.collections.api.collection.primitive.MutableLongCollection;
+
+public class MNBC_minimizer { //Minimizer extraction shared by build and classify
+	public static final int MAX_INT_K = 15; //Minimizers of longer k-mers don't fit in an int and are handled as longs
+	public static final int MAX_K = 31;
+
+	//Orderings of the canonical k-mers when choosing the minimizer of a window, recorded as their index in databases.
+	//Alphabetical over-selects low-complexity k-mers (poly-A and the like), hash spreads minimizers evenly over k-mer space
+	public static final int ALPHABETICAL = 0;
+	public static final int HASH = 1;
+	public static final String[] ORDERING_NAMES = {"alphabetical", "hash"};
+
+	public static int parseOrdering(String name) { //-1 if unknown
+		return Arrays.asList(ORDERING_NAMES).indexOf(name);
+	}
+
+	//2-bit base codes in the default alphabetical ACGT order, so comparing k-mer codes is the same as comparing k-mer strings
+	private static final byte[] BASE_CODES = new byte[256];
+	static {
+		Arrays.fill(BASE_CODES, (byte) -1);
+		BASE_CODES['A'] = BASE_CODES['a'] = 0;
+		BASE_CODES['C'] = BASE_CODES['c'] = 1;
+		BASE_CODES['G'] = BASE_CODES['g'] = 2;
+		BASE_CODES['T'] = BASE_CODES['t'] = 3;
+	}
+
+	public static int encodeBase(int base) { //0-3 for A/C/G/T in either case, -1 for any other character
+		return (base < 0 || base > 255) ? -1 : BASE_CODES[base];
+	}
+
+	//Invertible integer hash on the 2k-bit k-mer code (Thomas Wang's 64-bit mix masked to 2k bits, as in minimap2): a bijection of [0, 4^k),
+	//so hashed minimizers take the same storage and identify their k-mers as well as the codes themselves
+	public static long hash(long kmer, long mask) {
+		kmer = (~kmer + (kmer << 21)) & mask;
+		kmer = kmer ^ (kmer >>> 24);
+		kmer = ((kmer + (kmer << 3)) + (kmer << 8)) & mask;
+		kmer = kmer ^ (kmer >>> 14);
+		kmer = ((kmer + (kmer << 2)) + (kmer << 4)) & mask;
+		kmer = kmer ^ (kmer >>> 28);
+		kmer = (kmer + (kmer << 31)) & mask;
+		return kmer;
+	}
+
+	public static boolean isLong(int k) { //Whether minimizers of k-mers of length k are stored as longs (in databases and in memory)
+		return k > MAX_INT_K;
+	}
+
+	//Extracts the canonical minimizers (windows of w consecutive k-mers, i.e. w+k-1 bases) of one sequence at a time by rolling its 2-bit
+	//encoded k-mers: the minimizers of all windows (interior), of the first w-1 (u,k) windows (left end) and of the last w-1 (u,k) windows
+	//(right end). Density is about 2/(w+1), so w=k (the default) gives about 2/(k+1) and larger w give smaller databases and fewer read minimizers.
+	//K-mers containing a base other than A/C/G/T are skipped. Sequences with fewer k-mers than one window only get the left end minimizers.
+	//With hash ordering, minimizers are the hashed codes of the canonical k-mers and the smallest hash wins.
+	//Minimizers go into an int collection for k up to 15, or into a long collection for any k up to 31.
+	//Nothing is allocated after construction, so each thread keeps its own extractor.
+	public static class Extractor {
+		private final int k;
+		private final int w;
+		private final boolean hashOrdering;
+		private final long kmerMask;
+		private final int minusShift;
+
+		private final long[] dequeValues; //Monotone deque of the valid k-mers in the current window, front is the window minimizer
+		private final long[] dequeIndices;
+		private final int dequeMask;
+		private int dequeHead;
+		private int dequeTail;
+
+		private final long[] recentKmers; //Last w-1 canonical k-mers (-1 if invalid) for the right end minimizers
+		private final int recentMask;
+
+		private MutableIntCollection intMinimizers;
+		private MutableLongCollection longMinimizers;
+		private long plusKmer;
+		private long minusKmer;
+		private int validRun; //Number of valid bases ending at the current position
+		private long length;
+		private long numberOfKmers;
+		private long lastEmittedIndex;
+		private long leftEndMinimizer;
+		private boolean leftEnd = true; //Whether the end minimizers are emitted, see setEnds()
+		private boolean rightEnd = true;
+
+		public Extractor(int aK, int aW, int anOrdering) {
+			if(aK < 1 || aK > MAX_K) {
+				throw new IllegalArgumentException("k must be between 1 and " + MAX_K + ", not " + aK);
+			}
+			if(aW < 1) {
+				throw new IllegalArgumentException("w must be at least 1, not " + aW);
+			}
+			k = aK;
+			w = aW;
+			hashOrdering = (anOrdering == HASH);
+			kmerMask = (1L << (2 * k)) - 1;
+			minusShift = 2 * (k - 1);
+			int capacity = Integer.highestOneBit(w) << 1; //Power of two > w
+			dequeValues = new long[capacity];
+			dequeIndices = new long[capacity];
+			dequeMask = capacity - 1;
+			recentKmers = new long[capacity];
+			recentMask = capacity - 1;
+		}
+
+		public void extract(byte[] sequence, int from, int to, MutableLongCollection someMinimizers) {
+			start(someMinimizers);
+			for(int i = from; i < to; i++) {
+				add(sequence[i]);
+			}
+			finish();
+		}
+
+		public void start(MutableIntCollection someMinimizers) {
+			if(isLong(k)) {
+				throw new IllegalStateException("Minimizers of k=" + k + " don't fit in an int");
+			}
+			intMinimizers = someMinimizers;
+			longMinimizers = null;
+			reset();
+		}
+
+		public void start(MutableLongCollection someMinimizers) {
+			intMinimizers = null;
+			longMinimizers = someMinimizers;
+			reset();
+		}
+
+		private void reset() {
+			plusKmer = 0;
+			minusKmer = 0;
+			validRun = 0;
+			length = 0;
+			numberOfKmers = 0;
+			dequeHead = 0;
+			dequeTail = 0;
+			lastEmittedIndex = -1;
+			leftEndMinimizer = Long.MAX_VALUE;
+		}
+
+		//Whether the following sequences get their left and right end minimizers (both by default). A chunk of a longer sequence only gets
+		//the ends that are also the sequence's, so that the minimizers of overlapping chunks add up to those of the whole sequence
+		public void setEnds(boolean aLeftEnd, boolean aRightEnd) {
+			leftEnd = aLeftEnd;
+			rightEnd = aRightEnd;
+		}
+
+		public void add(int base) {
+			int code = encodeBase(base);
+			if(code < 0) {
+				validRun = 0;
+			} else {
+				plusKmer = ((plusKmer << 2) | code) & kmerMask;
+				minusKmer = (minusKmer >>> 2) | ((long) (3 - code) << minusShift);
+				validRun++;
+			}
+			length++;
+
+			if(length >= k) {
+				if(validRun < k) {
+					addKmer(-1);
+				} else {
+					long kmer = Math.min(plusKmer, minusKmer);
+					addKmer(hashOrdering ? hash(kmer, kmerMask) : kmer);
+				}
+			}
+		}
+
+		private void addKmer(long kmer) { //kmer is -1 if invalid
+			long index = numberOfKmers++;
+			recentKmers[(int) (index & recentMask)] = kmer;
+
+			if(kmer >= 0) {
+				if(leftEnd && index <= w - 2 && kmer < leftEndMinimizer) { //left end minimizers, dynamic programming
+					leftEndMinimizer = kmer;
+					emit(kmer);
+				}
+
+				while(dequeTail != dequeHead && dequeValues[(dequeTail - 1) & dequeMask] > kmer) {
+					dequeTail--;
+				}
+				dequeValues[dequeTail & dequeMask] = kmer;
+				dequeIndices[dequeTail & dequeMask] = index;
+				dequeTail++;
+			}
+
+			long windowStart = index - w + 1;
+			if(windowStart >= 0) { //interior minimizers
+				while(dequeTail != dequeHead && dequeIndices[dequeHead & dequeMask] < windowStart) {
+					dequeHead++;
+				}
+				if(dequeTail != dequeHead && dequeIndices[dequeHead & dequeMask] != lastEmittedIndex) {
+					lastEmittedIndex = dequeIndices[dequeHead & dequeMask];
+					emit(dequeValues[dequeHead & dequeMask]);
+				}
+			}
+		}
+
+		private void emit(long minimizer) {
+			if(longMinimizers != null) {
+				longMinimizers.add(minimizer);
+			} else {
+				intMinimizers.add((int) minimizer);
+			}
+		}
+
+		public void finish() {
+			if(!rightEnd || numberOfKmers < w) { //Sequence not reaching one window's length, only left end minimizers
+				return;
+			}
+
+			long rightEndMinimizer = Long.MAX_VALUE; //right end minimizers, dynamic programming
+			for(long index = numberOfKmers - 1; index >= numberOfKmers - w + 1; index--) {
+				long kmer = recentKmers[(int) (index & recentMask)];
+				if(kmer >= 0 && kmer < rightEndMinimizer) {
+					rightEndMinimizer = kmer;
+					emit(kmer);
+				}
+			}
+		}
+	}
+
+	//Counts the valid k-mers in one strand of a sequence exactly as the original implementation did: the number of k-mer start indices
+	//minus every index within k-1 bases before an invalid base, including out-of-range indices. Kept apart from the extractor since
+	//a sequence extracted in overlapping chunks is still counted once, base by base
+	public static class KmerCounter {
+		private final int k;
+		private long length;
+		private long lastInvalidPosition;
+		private long invalidKmerIndexCount;
+
+		public KmerCounter(int aK) {
+			k = aK;
+			reset();
+		}
+
+		public void reset() {
+			length = 0;
+			lastInvalidPosition = Long.MIN_VALUE;
+			invalidKmerIndexCount = 0;
+		}
+
+		public void add(int base) {
+			if(encodeBase(base) < 0) { //Each invalid base invalidates the k k-mer start indices ending at it
+				invalidKmerIndexCount += (lastInvalidPosition == Long.MIN_VALUE) ? k : Math.min(k, length - lastInvalidPosition);
+				lastInvalidPosition = length;
+			}
+			length++;
+		}
+
+		public long getKmerCount() {
+			long numberOfKmers = Math.max(0, length - k + 1);
+			return (numberOfKmers == 0) ? 0 : numberOfKmers - invalidKmerIndexCount;
+		}
+	}
+}
@@ -0,0 +1,401 @@
+/**
+ *
+ * @author Ruipeng Lu (ruipeng.lu@inspection.gc.ca)
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+public class MNBC_pack { //Packs a database directory into one file whose minimizer arrays classify maps into memory and queries in place
+	//Packed file layout (big-endian): magic, version, k, minimizer width in bytes (4, or 8 when k is over 15, 0 in older files meaning 4),
+	//w (from version 2, version 1 files have w=k), k-mer ordering (from version 3, older files are alphabetical),
+	//then every genome's ascending minimizers as raw ints or longs,
+	//then the genome table (number of genomes, then per genome in the order of their count file names: accession, valid k-mer total count,
+	//number of minimizers, file offset of its minimizers (from version 4, older files have the genomes' minimizers back to back in table order)),
+	//then the trailer: offset of the genome table (long), CRC32 of the genome table, magic.
+	//Update appends genomes after the last one and drops removed ones from the table only, so minimizers aren't always in table order
+	private static final int MAGIC = 0x4D4E4250; //"MNBP"
+	private static final int VERSION = 4;
+	private static final int[] HEADER_LENGTHS = {0, 16, 20, 24, 24}; //Per version
+	private static final int HEADER_LENGTH = HEADER_LENGTHS[VERSION];
+	private static final int TRAILER_LENGTH = 16;
+	private static final long MAX_MAPPED_REGION = Integer.MAX_VALUE & ~7L; //One MappedByteBuffer can't exceed 2 GB
+
+	private static int k = 15;
+	private static int w; //k if not set
+	private static int ordering = MNBC_minimizer.ALPHABETICAL;
+	private static int numberOfThreads;
+	private static String dbDirPath;
+	private static String outputPath;
+
+	public static void execute(String[] args) {
+		if(args.length == 1) {
+			printHelpInfo();
+			System.exit(0);
+		}
+
+		for(int i = 1; i < args.length; i++) {
+			if(args[i].startsWith("-")) {
+				switch(args[i].charAt(1)) {
+					case 'k':
+						k = Integer.parseInt(args[i + 1]);
+						break;
+					case 'a':
+						ordering = MNBC_minimizer.parseOrdering(args[i + 1]);
+						break;
+					case 'w':
+						w = Integer.parseInt(args[i + 1]);
+						break;
+					case 'c':
+						numberOfThreads = Integer.parseInt(args[i + 1]);
+						break;
+					case 'd':
+						dbDirPath = args[i + 1];
+						break;
+					case 'o':
+						outputPath = args[i + 1];
+						break;
+					case 'h':
+						printHelpInfo();
+						System.exit(0);
+				}
+			}
+		}
+
+		if(w == 0) {
+			w = k;
+		}
+		if((k <= 0) || (k > MNBC_minimizer.MAX_K) || (w <= 0) || (ordering < 0) || (numberOfThreads == 0) || (dbDirPath == null) || (outputPath == null)) {
+			System.out.println("Error: not all required parameters are correctly set -- Run 'MNBC pack -h' for help");
+			System.exit(0);
+		}
+
+		long startTime = System.nanoTime();
+		File[] countFiles = new File(dbDirPath).listFiles((dir, name) -> MNBC_db.isCountFile(name));
+		Arrays.sort(countFiles); //Genome order of the packed file doesn't depend on the directory listing order
+		System.out.println("Packing " + countFiles.length + " count files into " + outputPath);
+
+		try {
+			writePackedFile(countFiles, new File(outputPath));
+		} catch(Exception e) {
+			System.out.println("ERROR: failed packing " + dbDirPath);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		long endTime = System.nanoTime();
+		System.out.println("done in " + ((endTime - startTime) / 1000000000) + " seconds");
+	}
+
+	private static void writePackedFile(File[] countFiles, File packedFile) throws Exception {
+		ExecutorService nested = Executors.newFixedThreadPool(numberOfThreads);
+		ArrayList<Future<MNBC_db.CountFile>> contents = new ArrayList<Future<MNBC_db.CountFile>>();
+		int readAhead = numberOfThreads * 2; //Count files are read in parallel but written in order, keeping only a few in memory
+		for(int i = 0; i < Math.min(readAhead, countFiles.length); i++) {
+			contents.add(nested.submit(new CountFileReader(countFiles[i])));
+		}
+
+		ArrayList<GenomeEntry> genomes = new ArrayList<GenomeEntry>();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(packedFile), 1 << 20));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(k);
+		int width = MNBC_minimizer.isLong(k) ? 8 : 4;
+		out.writeInt(width);
+		out.writeInt(w);
+		out.writeInt(ordering);
+		long tableOffset = HEADER_LENGTH;
+		for(int i = 0; i < countFiles.length; i++) {
+			MNBC_db.CountFile content = contents.get(i).get();
+			contents.set(i, null);
+			if(i + readAhead < countFiles.length) {
+				contents.add(nested.submit(new CountFileReader(countFiles[i + readAhead])));
+			}
+
+			genomes.add(writeGenome(out, countFiles[i], content, tableOffset));
+			tableOffset += (long) width * content.size();
+		}
+		nested.shutdown();
+
+		writeGenomeTable(out, genomes, tableOffset);
+		out.close();
+	}
+
+	private static class GenomeEntry { //One genome of the genome table
+		private String genomeId;
+		private long kmerTotalCount;
+		private int numberOfMinimizers;
+		private long offset;
+
+		public GenomeEntry(String aGenomeId, long aKmerTotalCount, int aNumberOfMinimizers, long anOffset) {
+			genomeId = aGenomeId;
+			kmerTotalCount = aKmerTotalCount;
+			numberOfMinimizers = aNumberOfMinimizers;
+			offset = anOffset;
+		}
+	}
+
+	//Writes the minimizers of a count file at the given offset of the packed file, checking that it was built with the same settings
+	private static GenomeEntry writeGenome(DataOutputStream out, File countFile, MNBC_db.CountFile content, long offset) throws IOException {
+		if(content.k != 0 && content.k != k) {
+			throw new IOException(countFile.getName() + " was built with k=" + content.k + " but packing uses k=" + k);
+		}
+		if(content.w != 0 && content.w != w) {
+			throw new IOException(countFile.getName() + " was built with w=" + content.w + " but packing uses w=" + w);
+		}
+		if(content.ordering >= 0 && content.ordering != ordering) {
+			throw new IOException(countFile.getName() + " was built with " + MNBC_minimizer.ORDERING_NAMES[content.ordering] + " k-mer ordering but packing uses " + MNBC_minimizer.ORDERING_NAMES[ordering]);
+		}
+		if(content.longMinimizers != null) {
+			for(long minimizer : content.longMinimizers) {
+				out.writeLong(minimizer);
+			}
+		} else {
+			for(int minimizer : content.minimizers) {
+				out.writeInt(minimizer);
+			}
+		}
+		return new GenomeEntry(MNBC_db.getGenomeId(countFile.getName()), content.kmerTotalCount, content.size(), offset);
+	}
+
+	private static void writeGenomeTable(DataOutputStream out, ArrayList<GenomeEntry> genomes, long tableOffset) throws IOException {
+		ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+		DataOutputStream table = new DataOutputStream(tableBytes);
+		table.writeInt(genomes.size());
+		for(GenomeEntry genome : genomes) {
+			table.writeUTF(genome.genomeId);
+			table.writeLong(genome.kmerTotalCount);
+			table.writeInt(genome.numberOfMinimizers);
+			table.writeLong(genome.offset);
+		}
+		table.close();
+
+		CRC32 checksum = new CRC32();
+		checksum.update(tableBytes.toByteArray());
+		tableBytes.writeTo(out);
+		out.writeLong(tableOffset);
+		out.writeInt((int) checksum.getValue());
+		out.writeInt(MAGIC);
+	}
+
+	//Patches a packed database in place, for update: removed genomes are dropped from the genome table (their minimizers stay in the file,
+	//unused, until it is packed again) and the minimizers of the added count files are written over the old genome table, followed by the
+	//new one. Genomes keep the order pack gives them, by count file name (the accession followed by '_'), so classifying with an updated
+	//file gives the same results as with a freshly packed one
+	public static void update(File packedFile, HashSet<String> removedGenomeIds, ArrayList<File> countFiles) throws IOException {
+		PackedDatabase db = open(packedFile);
+		if(db.version < 3) {
+			throw new IOException("Packed database " + packedFile + " has version " + db.version + ", pack it again to update it");
+		}
+		k = db.k;
+		w = db.w;
+		ordering = db.ordering;
+		int width = MNBC_minimizer.isLong(k) ? 8 : 4;
+
+		ArrayList<GenomeEntry> genomes = new ArrayList<GenomeEntry>();
+		long unusedBytes = 0;
+		for(int i = 0; i < db.genomeIds.length; i++) {
+			if(removedGenomeIds.contains(db.genomeIds[i])) {
+				unusedBytes += (long) width * db.genomeMinimizers[i].size();
+			} else {
+				genomes.add(new GenomeEntry(db.genomeIds[i], db.kmerTotalCounts[i], db.genomeMinimizers[i].size(), db.genomeOffsets[i]));
+			}
+		}
+
+		RandomAccessFile file = new RandomAccessFile(packedFile, "rw");
+		FileChannel channel = file.getChannel();
+		channel.position(db.tableOffset);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 20));
+		long tableOffset = db.tableOffset;
+		for(File countFile : countFiles) {
+			MNBC_db.CountFile content = new CountFileReader(countFile).call();
+			genomes.add(writeGenome(out, countFile, content, tableOffset));
+			tableOffset += (long) width * content.size();
+		}
+		genomes.sort(Comparator.comparing(genome -> genome.genomeId + "_"));
+		writeGenomeTable(out, genomes, tableOffset);
+		out.flush();
+		file.setLength(channel.position());
+		file.seek(4);
+		file.writeInt(VERSION);
+		channel.force(true);
+		file.close();
+
+		System.out.println("Updated packed database " + packedFile + ": " + genomes.size() + " genomes, " + (unusedBytes >> 20) + " MB of removed genomes left unused until it is packed again");
+	}
+
+	private static class CountFileReader implements Callable<MNBC_db.CountFile> {
+		private File countFile;
+
+		public CountFileReader(File aCountFile) {
+			countFile = aCountFile;
+		}
+
+		@Override
+		public MNBC_db.CountFile call() throws IOException {
+			MNBC_db.CountFile content = MNBC_db.readCountFile(countFile, k);
+			if(countFile.getName().endsWith(MNBC_db.TEXT_SUFFIX)) {
+				content.sort();
+			}
+			return content;
+		}
+	}
+
+	public static class PackedDatabase {
+		public int version;
+		public int k;
+		public int w;
+		public int ordering;
+		public String[] genomeIds;
+		public long[] kmerTotalCounts;
+		public long[] genomeOffsets; //File offset of each genome's minimizers
+		public long tableOffset;
+		public MNBC_db.MinimizerSet[] genomeMinimizers;
+	}
+
+	public static PackedDatabase open(File packedFile) throws IOException {
+		PackedDatabase db = new PackedDatabase();
+		RandomAccessFile file = new RandomAccessFile(packedFile, "r");
+		FileChannel channel = file.getChannel();
+		long fileLength = channel.size();
+		if(fileLength < HEADER_LENGTH + TRAILER_LENGTH) {
+			file.close();
+			throw new IOException("Truncated packed database " + packedFile);
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		channel.read(header, 0);
+		header.flip();
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+		channel.read(trailer, fileLength - TRAILER_LENGTH);
+		trailer.flip();
+		if(header.getInt() != MAGIC || trailer.getInt(12) != MAGIC) {
+			file.close();
+			throw new IOException("Not a complete MNBC packed database: " + packedFile);
+		}
+		int version = header.getInt();
+		db.version = version;
+		if(version > VERSION) {
+			file.close();
+			throw new IOException("Packed database " + packedFile + " has unsupported version " + version);
+		}
+		db.k = header.getInt();
+		int width = header.getInt();
+		if(width == 0) {
+			width = 4;
+		}
+		if(width != (MNBC_minimizer.isLong(db.k) ? 8 : 4)) {
+			file.close();
+			throw new IOException("Packed database " + packedFile + " has " + width + "-byte minimizers, which don't match k=" + db.k);
+		}
+		db.w = (version >= 2) ? header.getInt() : db.k;
+		db.ordering = (version >= 3) ? header.getInt() : MNBC_minimizer.ALPHABETICAL;
+		if(db.ordering < 0 || db.ordering >= MNBC_minimizer.ORDERING_NAMES.length) {
+			file.close();
+			throw new IOException("Packed database " + packedFile + " has unsupported k-mer ordering " + db.ordering);
+		}
+
+		long tableOffset = trailer.getLong();
+		db.tableOffset = tableOffset;
+		byte[] tableBytes = new byte[(int) (fileLength - TRAILER_LENGTH - tableOffset)];
+		ByteBuffer tableBuffer = ByteBuffer.wrap(tableBytes);
+		while(tableBuffer.hasRemaining()) {
+			channel.read(tableBuffer, tableOffset + tableBuffer.position());
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(tableBytes);
+		if((int) checksum.getValue() != trailer.getInt()) {
+			file.close();
+			throw new IOException("Checksum mismatch in the genome table of " + packedFile);
+		}
+
+		DataInputStream table = new DataInputStream(new ByteArrayInputStream(tableBytes));
+		int numberOfGenomes = table.readInt();
+		db.genomeIds = new String[numberOfGenomes];
+		db.kmerTotalCounts = new long[numberOfGenomes];
+		db.genomeOffsets = new long[numberOfGenomes];
+		int[] sizes = new int[numberOfGenomes];
+		long offset = HEADER_LENGTHS[version];
+		for(int i = 0; i < numberOfGenomes; i++) {
+			db.genomeIds[i] = table.readUTF();
+			db.kmerTotalCounts[i] = table.readLong();
+			sizes[i] = table.readInt();
+			db.genomeOffsets[i] = (version >= 4) ? table.readLong() : offset;
+			offset = db.genomeOffsets[i] + (long) width * sizes[i];
+			if(db.genomeOffsets[i] < HEADER_LENGTHS[version] || offset > tableOffset) {
+				file.close();
+				throw new IOException("Minimizers of genome " + db.genomeIds[i] + " lie outside the minimizer section of " + packedFile);
+			}
+		}
+
+		//Map genomes next to each other in the file together in regions below the 2 GB limit, each genome becomes an int or long view into its region
+		db.genomeMinimizers = new MNBC_db.MinimizerSet[numberOfGenomes];
+		Integer[] fileOrder = new Integer[numberOfGenomes];
+		for(int i = 0; i < numberOfGenomes; i++) {
+			fileOrder[i] = i;
+		}
+		Arrays.sort(fileOrder, Comparator.comparingLong(i -> db.genomeOffsets[i]));
+		int firstGenomeInRegion = 0;
+		while(firstGenomeInRegion < numberOfGenomes) {
+			long regionStart = db.genomeOffsets[fileOrder[firstGenomeInRegion]];
+			long regionEnd = regionStart;
+			int endGenome = firstGenomeInRegion;
+			while(endGenome < numberOfGenomes) {
+				long genomeEnd = db.genomeOffsets[fileOrder[endGenome]] + (long) width * sizes[fileOrder[endGenome]];
+				if(genomeEnd - regionStart > MAX_MAPPED_REGION && endGenome != firstGenomeInRegion) {
+					break;
+				}
+				regionEnd = Math.max(regionEnd, genomeEnd);
+				endGenome++;
+			}
+
+			MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart);
+			for(int j = firstGenomeInRegion; j < endGenome; j++) {
+				int i = fileOrder[j];
+				int position = (int) (db.genomeOffsets[i] - regionStart);
+				ByteBuffer minimizers = region.duplicate().position(position).limit(position + width * sizes[i]).slice();
+				if(width == 8) {
+					db.genomeMinimizers[i] = new MNBC_db.LongBufferMinimizerSet(minimizers.asLongBuffer());
+				} else {
+					db.genomeMinimizers[i] = new MNBC_db.IntBufferMinimizerSet(minimizers.asIntBuffer());
+				}
+			}
+			firstGenomeInRegion = endGenome;
+		}
+		file.close(); //Mappings stay valid after the channel is closed
+
+		return db;
+	}
+
+	private static void printHelpInfo() {
+		System.out.println("This MNBC_pack tool (v1.2) packs a database directory into a single file, which classify maps into memory instead of loading (starting up nearly instantly, and sharing the operating system's page cache between concurrent classify runs on the same node).");
+		System.out.println("-h:	Show this help menu");
+		System.out.println("-c:	Number of threads");
+		System.out.println("-d:	Input database directory (containing text _count.gz or binary _count.bin files)");
+		System.out.println("-o:	Output packed database file (e.g. db.mnbc)");
+		System.out.println("-k (optional):	K-mer length the database was built with (an integer between 1 and 31 inclusive) (default 15)");
+		System.out.println("-w (optional):	Window size the database was built with (default k)");
+		System.out.println("-a (optional):	K-mer ordering the database was built with (alphabetical or hash) (default alphabetical)");
+	}
+}
@@ -0,0 +1,247 @@
+/**
+ *
+ * @author Ruipeng Lu (ruipeng.lu@inspection.gc.ca)
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+public class MNBC_update { //Adds genomes to and removes genomes from a built database, leaving the other genomes untouched
+	private static String dbDirPath;
+	private static String addedGenomeDirPath;
+	private static String removedGenomesPath; //One accession per line
+	private static String packedFilePath;
+	private static String taxonomyPath;
+	private static String refseqAssemblySummaryPath;
+	private static String nodeDmpPath;
+	private static String numberOfThreads;
+
+	public static void execute(String[] args) {
+		if(args.length == 1) {
+			printHelpInfo();
+			System.exit(0);
+		}
+
+		for(int i = 1; i < args.length; i++) {
+			if(args[i].startsWith("-")) {
+				switch(args[i].charAt(1)) {
+					case 'd':
+						dbDirPath = args[i + 1];
+						break;
+					case 'i':
+						addedGenomeDirPath = args[i + 1];
+						break;
+					case 'r':
+						removedGenomesPath = args[i + 1];
+						break;
+					case 'p':
+						packedFilePath = args[i + 1];
+						break;
+					case 'm':
+						taxonomyPath = args[i + 1];
+						break;
+					case 'a':
+						refseqAssemblySummaryPath = args[i + 1];
+						break;
+					case 'n':
+						nodeDmpPath = args[i + 1];
+						break;
+					case 'c':
+						numberOfThreads = args[i + 1];
+						break;
+					case 'h':
+						printHelpInfo();
+						System.exit(0);
+				}
+			}
+		}
+
+		if((dbDirPath == null) || (numberOfThreads == null) || (addedGenomeDirPath == null && removedGenomesPath == null) || (taxonomyPath != null && addedGenomeDirPath != null && (refseqAssemblySummaryPath == null || nodeDmpPath == null))) {
+			System.out.println("Error: not all required parameters are correctly set -- Run 'MNBC update -h' for help");
+			System.exit(0);
+		}
+
+		long startTime = System.nanoTime();
+		File dbDir = new File(dbDirPath);
+		String parameters = null;
+		HashMap<String, String> genome2Line = new HashMap<String, String>(); //Manifest lines before adding genomes, to tell which ones were built
+		try {
+			parameters = MNBC_manifest.readParameters(dbDir);
+			if(parameters == null) {
+				System.out.println("Error: " + dbDirPath + " has no " + MNBC_manifest.FILENAME + ", it must be built by this version of 'MNBC build' to be updated");
+				System.exit(1);
+			}
+			MNBC_manifest manifest = new MNBC_manifest(dbDir, parameters);
+			for(MNBC_manifest.Entry entry : manifest.getEntries()) {
+				genome2Line.put(entry.genome, entry.toLine());
+			}
+			manifest.close();
+		} catch(IOException e) {
+			System.out.println("Error: can't read the manifest of " + dbDirPath + " - " + e.getMessage());
+			System.exit(1);
+		}
+		HashMap<String, String> parameter2Value = new HashMap<String, String>();
+		for(String parameter : parameters.split(" ")) {
+			String[] fields = parameter.split("=");
+			parameter2Value.put(fields[0], fields[1]);
+		}
+		System.out.println("Updating database " + dbDirPath + " built with " + parameters);
+
+		//New genomes (and genomes whose file changed) are built with the settings of the database, build skips all genomes already in the manifest
+		if(addedGenomeDirPath != null) {
+			MNBC_build.execute(new String[] {"build", "-k", parameter2Value.get("k"), "-w", parameter2Value.get("w"), "-a", parameter2Value.get("ordering"), "-t", parameter2Value.get("format"), "-f", parameter2Value.get("filter"), "-c", numberOfThreads, "-i", addedGenomeDirPath, "-o", dbDirPath});
+		}
+
+		ArrayList<File> builtCountFiles = new ArrayList<File>();
+		HashSet<String> builtGenomeIds = new HashSet<String>();
+		HashSet<String> removedGenomeIds = new HashSet<String>(); //From the packed file and taxonomy, including the previous version of rebuilt genomes
+		try {
+			MNBC_manifest manifest = new MNBC_manifest(dbDir, parameters);
+			for(MNBC_manifest.Entry entry : manifest.getEntries()) {
+				if(!entry.toLine().equals(genome2Line.get(entry.genome))) {
+					String genomeId = MNBC_db.getGenomeId(entry.genome);
+					builtGenomeIds.add(genomeId);
+					removedGenomeIds.add(genomeId);
+					if(!entry.countFile.equals(MNBC_manifest.NO_COUNT_FILE)) {
+						builtCountFiles.add(new File(dbDir, entry.countFile));
+					}
+				}
+			}
+
+			if(removedGenomesPath != null) {
+				HashSet<String> genomesToRemove = readAccessions(removedGenomesPath);
+				int numberOfRemovedGenomes = 0;
+				for(MNBC_manifest.Entry entry : new ArrayList<MNBC_manifest.Entry>(manifest.getEntries())) {
+					String genomeId = MNBC_db.getGenomeId(entry.genome);
+					if(genomesToRemove.remove(genomeId)) {
+						if(!entry.countFile.equals(MNBC_manifest.NO_COUNT_FILE)) { //Deleted before being journaled, so a killed update never leaves it listed
+							File countFile = new File(dbDir, entry.countFile);
+							countFile.delete();
+							builtCountFiles.remove(countFile);
+						}
+						manifest.remove(entry.genome);
+						builtGenomeIds.remove(genomeId);
+						removedGenomeIds.add(genomeId);
+						numberOfRemovedGenomes++;
+					}
+				}
+				for(String genomeId : genomesToRemove) {
+					System.out.println("WARNING - genome " + genomeId + " to remove is not in the database");
+				}
+				System.out.println("Removed " + numberOfRemovedGenomes + " genomes");
+			}
+			manifest.close();
+		} catch(IOException e) {
+			System.out.println("ERROR: failed updating the manifest of " + dbDirPath);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.out.println("Built " + builtGenomeIds.size() + " genomes");
+
+		if(packedFilePath != null) {
+			try {
+				MNBC_pack.PackedDatabase db = MNBC_pack.open(new File(packedFilePath));
+				String packedParameters = "k=" + db.k + " w=" + db.w + " ordering=" + MNBC_minimizer.ORDERING_NAMES[db.ordering];
+				if(!parameters.startsWith(packedParameters + " ")) {
+					System.out.println("Error: packed database " + packedFilePath + " has " + packedParameters + " but the database directory " + parameters);
+					System.exit(1);
+				}
+				MNBC_pack.update(new File(packedFilePath), removedGenomeIds, builtCountFiles);
+			} catch(IOException e) {
+				System.out.println("ERROR: failed updating packed database " + packedFilePath + ", it can be packed again from " + dbDirPath + " with 'MNBC pack'");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+
+		if(taxonomyPath != null) {
+			updateTaxonomy(removedGenomeIds, builtGenomeIds);
+		}
+
+		long endTime = System.nanoTime();
+		System.out.println("done in " + ((endTime - startTime) / 1000000000) + " seconds");
+	}
+
+	private static HashSet<String> readAccessions(String path) throws IOException {
+		HashSet<String> accessions = new HashSet<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		String line = null;
+		while((line = reader.readLine()) != null) {
+			if(!line.trim().isEmpty()) {
+				accessions.add(line.trim());
+			}
+		}
+		reader.close();
+		return accessions;
+	}
+
+	//Drops the rows of removed genomes from the taxonomy file and adds (or replaces) the rows of the built genomes, generated by the taxonomy
+	//tool from the added genome directory. The rows of untouched genomes are kept as they are
+	private static void updateTaxonomy(HashSet<String> removedGenomeIds, HashSet<String> builtGenomeIds) {
+		File taxonomyFile = new File(taxonomyPath);
+		File tempFile = new File(taxonomyPath + MNBC_manifest.TEMP_SUFFIX);
+		try {
+			HashMap<String, String> genomeId2Row = new HashMap<String, String>();
+			if(!builtGenomeIds.isEmpty()) {
+				File addedRowsFile = new File(taxonomyPath + ".added" + MNBC_manifest.TEMP_SUFFIX);
+				MNBC_taxonomy.execute(new String[] {"taxonomy", "-a", refseqAssemblySummaryPath, "-n", nodeDmpPath, "-i", addedGenomeDirPath, "-o", addedRowsFile.getPath()});
+				BufferedReader reader = new BufferedReader(new FileReader(addedRowsFile));
+				String line = reader.readLine(); //Header
+				while((line = reader.readLine()) != null) {
+					String genomeId = line.split("\t", 2)[0];
+					if(builtGenomeIds.contains(genomeId)) {
+						genomeId2Row.put(genomeId, line);
+					}
+				}
+				reader.close();
+				addedRowsFile.delete();
+			}
+
+			BufferedReader reader = new BufferedReader(new FileReader(taxonomyFile));
+			PrintWriter writer = new PrintWriter(tempFile);
+			writer.print(reader.readLine() + "\n");
+			String line = null;
+			while((line = reader.readLine()) != null) {
+				String genomeId = line.split("\t", 2)[0];
+				if(genomeId2Row.containsKey(genomeId) || (removedGenomeIds.contains(genomeId) && !builtGenomeIds.contains(genomeId))) {
+					continue; //Replaced by its new row, or removed
+				}
+				writer.print(line + "\n");
+			}
+			reader.close();
+			for(String row : genomeId2Row.values()) {
+				writer.print(row + "\n");
+			}
+			writer.close();
+			if(writer.checkError()) {
+				throw new IOException("Failed writing " + tempFile);
+			}
+			MNBC_manifest.commit(tempFile, taxonomyFile);
+		} catch(IOException e) {
+			System.out.println("ERROR: failed updating taxonomy file " + taxonomyPath);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.out.println("Updated taxonomy file " + taxonomyPath);
+	}
+
+	private static void printHelpInfo() {
+		System.out.println("This MNBC_update tool (v1.2) adds reference genomes to and removes them from a database built by 'MNBC build', only building the added genomes. The database keeps the settings it was built with (recorded in its manifest.tsv)");
+		System.out.println("-h:	Show this help menu");
+		System.out.println("-c:	Number of threads");
+		System.out.println("-d:	Database directory to update");
+		System.out.println("-i (optional):	Directory containing the (gzipped) files of the reference sequences to add. Sequences already in the database are skipped, so this can also be the directory the database was built from");
+		System.out.println("-r (optional):	File listing the accessions of the genomes to remove (e.g. GCF_000009045.1), one per line. Removal applies after adding");
+		System.out.println("-p (optional):	Packed database file of the database (produced by 'MNBC pack') to update in place. Minimizers of removed genomes stay in it, unused, until it is packed again");
+		System.out.println("-m (optional):	Taxonomy file of the database to update");
+		System.out.println("-a (optional):	Assembly summary file downloaded from NCBI, required with -m and -i to add the taxonomy of the added genomes (see 'MNBC taxonomy -h')");
+		System.out.println("-n (optional):	Taxonomy nodes.dmp file downoaded from NCBI, required with -m and -i (see 'MNBC taxonomy -h')");
+	}
+}